@@ -0,0 +1,105 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.TimerWheel;
+import edu.wisc.cs.sdn.vnet.rt.ArpCache;
+import edu.wisc.cs.sdn.vnet.rt.ArpEntry;
+import edu.wisc.cs.sdn.vnet.sw.LearnTable;
+
+/**
+ * MAC learning in the switch and next-hop resolution in the ARP cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class AddressTableBenchmark
+{
+	@Param({"1000", "100000", "1000000"})
+	public int addresses;
+
+	private TimerWheel timers;
+	private LearnTable learnTable;
+	private ArpCache arpCache;
+	private Iface[] ifaces;
+	private long[] macs;
+	private int[] ips;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		Random random = new Random(42);
+		this.ifaces = new Iface[4];
+		for (int i = 0; i < this.ifaces.length; i++)
+		{ this.ifaces[i] = new Iface("eth" + i); }
+
+		this.macs = new long[this.addresses];
+		this.ips = new int[this.addresses];
+		this.timers = new TimerWheel("bench-timers", TimerWheel.DEFAULT_TICK);
+		this.learnTable = new LearnTable(this.timers);
+		this.arpCache = new ArpCache(this.timers, (ip, iface, mac) -> { });
+		for (int i = 0; i < this.addresses; i++)
+		{
+			this.macs[i] = random.nextLong() & 0xfeffffffffffL;
+			this.ips[i] = random.nextInt();
+			this.arpCache.insert(MACAddress.valueOf(this.macs[i]), this.ips[i]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{ this.timers.close(); }
+
+	/** Relearn every address, since the switch ages entries out after 15s */
+	@Setup(Level.Iteration)
+	public void relearn()
+	{
+		for (int i = 0; i < this.addresses; i++)
+		{ this.learnTable.updateEntry(this.macs[i], this.ifaces[i & 3]); }
+	}
+
+	private int nextIndex()
+	{
+		int i = this.next++;
+		if (this.next == this.addresses)
+		{ this.next = 0; }
+		return i;
+	}
+
+	@Benchmark
+	public void learn()
+	{
+		int i = this.nextIndex();
+		this.learnTable.updateEntry(this.macs[i], this.ifaces[i & 3]);
+	}
+
+	@Benchmark
+	public Iface learnedInterface()
+	{ return this.learnTable.getInterface(this.macs[this.nextIndex()]); }
+
+	@Benchmark
+	public ArpEntry arpLookup()
+	{ return this.arpCache.lookup(this.ips[this.nextIndex()]); }
+}
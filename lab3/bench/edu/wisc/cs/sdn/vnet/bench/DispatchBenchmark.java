@@ -0,0 +1,60 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.PacketRegistry;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Creating payload packets through the factory registry against the
+ * reflective class maps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark
+{
+	public short etherType = Ethernet.TYPE_IPv4;
+	public byte protocol = IPv4.PROTOCOL_UDP;
+	public short port = UDP.RIP_PORT;
+
+	@Benchmark
+	public IPacket reflectiveEtherType() throws Exception
+	{ return Ethernet.etherTypeClassMap.get(this.etherType).newInstance(); }
+
+	@Benchmark
+	public IPacket registryEtherType()
+	{ return PacketRegistry.newEtherTypePayload(this.etherType); }
+
+	@Benchmark
+	public IPacket reflectiveIpProtocol() throws Exception
+	{ return IPv4.protocolClassMap.get(this.protocol).newInstance(); }
+
+	@Benchmark
+	public IPacket registryIpProtocol()
+	{ return PacketRegistry.newIpProtocolPayload(this.protocol); }
+
+	@Benchmark
+	public IPacket reflectiveUdpPort() throws Exception
+	{ return UDP.decodeMap.get(this.port).getConstructor().newInstance(); }
+
+	@Benchmark
+	public IPacket registryUdpPort()
+	{ return PacketRegistry.newUdpPayload(this.port, this.port); }
+}
@@ -0,0 +1,123 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.util.Random;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.RIPv2;
+import net.floodlightcontroller.packet.RIPv2Entry;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Builds representative frames for the packet benchmarks.
+ */
+final class Frames
+{
+	private static final String SRC_MAC = "00:00:00:00:00:01";
+	private static final String DST_MAC = "00:00:00:00:00:02";
+	private static final int SRC_IP = IPv4.toIPv4Address("10.0.1.101");
+	private static final int DST_IP = IPv4.toIPv4Address("10.0.2.102");
+
+	private Frames()
+	{ }
+
+	/**
+	 * Build a serialized frame.
+	 * @param kind one of udp, tcp, arp, rip or icmp
+	 * @return the frame's bytes, with valid checksums
+	 */
+	static byte[] build(String kind)
+	{
+		Random random = new Random(42);
+		Ethernet ether = new Ethernet();
+		ether.setSourceMACAddress(SRC_MAC);
+		ether.setDestinationMACAddress(DST_MAC);
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+
+		IPv4 ip = new IPv4();
+		ip.setTtl((byte)64);
+		ip.setSourceAddress(SRC_IP);
+		ip.setDestinationAddress(DST_IP);
+		ether.setPayload(ip);
+
+		if (kind.equals("udp"))
+		{
+			// DNS-sized datagram
+			UDP udp = new UDP();
+			udp.setSourcePort((short)53000);
+			udp.setDestinationPort((short)53);
+			udp.setPayload(new Data(bytes(random, 64)));
+			ip.setPayload(udp);
+		}
+		else if (kind.equals("tcp"))
+		{
+			// Full-sized segment
+			TCP tcp = new TCP();
+			tcp.setSourcePort((short)80);
+			tcp.setDestinationPort((short)40000);
+			tcp.setSequence(random.nextInt());
+			tcp.setAcknowledge(random.nextInt());
+			tcp.setFlags((short)0x10);
+			tcp.setWindowSize((short)65535);
+			tcp.setPayload(new Data(bytes(random, 1460)));
+			ip.setPayload(tcp);
+		}
+		else if (kind.equals("icmp"))
+		{
+			// Echo request as sent by ping
+			ICMP icmp = new ICMP();
+			icmp.setIcmpType(ICMP.TYPE_ECHO_REQUEST);
+			icmp.setPayload(new Data(bytes(random, 60)));
+			ip.setPayload(icmp);
+		}
+		else if (kind.equals("rip"))
+		{
+			// Full RIP response
+			RIPv2 rip = new RIPv2();
+			rip.setCommand(RIPv2.COMMAND_RESPONSE);
+			for (int i = 0; i < 25; i++)
+			{
+				RIPv2Entry entry = new RIPv2Entry(random.nextInt() & 0xffffff00,
+						0xffffff00, 1 + random.nextInt(15));
+				rip.addEntry(entry);
+			}
+			UDP udp = new UDP();
+			udp.setSourcePort(UDP.RIP_PORT);
+			udp.setDestinationPort(UDP.RIP_PORT);
+			udp.setPayload(rip);
+			ip.setDestinationAddress(IPv4.toIPv4Address("224.0.0.9"));
+			ip.setPayload(udp);
+		}
+		else if (kind.equals("arp"))
+		{
+			ARP arp = new ARP();
+			arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
+			arp.setProtocolType(ARP.PROTO_TYPE_IP);
+			arp.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+			arp.setProtocolAddressLength((byte)4);
+			arp.setOpCode(ARP.OP_REQUEST);
+			arp.setSenderHardwareAddress(Ethernet.toMACAddress(SRC_MAC));
+			arp.setSenderProtocolAddress(SRC_IP);
+			arp.setTargetHardwareAddress(new byte[6]);
+			arp.setTargetProtocolAddress(DST_IP);
+			ether.setEtherType(Ethernet.TYPE_ARP);
+			ether.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
+			ether.setPayload(arp);
+		}
+		else
+		{ throw new IllegalArgumentException("Unknown frame kind " + kind); }
+
+		return ether.serialize();
+	}
+
+	private static byte[] bytes(Random random, int length)
+	{
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return data;
+	}
+}
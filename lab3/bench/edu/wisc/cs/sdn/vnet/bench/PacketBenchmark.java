@@ -0,0 +1,103 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.floodlightcontroller.packet.BasePacket;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.IPv4View;
+
+/**
+ * Parsing and serialization of whole frames through the object API, and
+ * parsing through the flyweight views.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark
+{
+	@Param({"udp", "tcp", "arp", "rip", "icmp"})
+	public String frame;
+
+	@Param({"false", "true"})
+	public boolean lazy;
+
+	private byte[] bytes;
+	private Ethernet packet;
+	private ByteBuffer buffer;
+	private ByteBuffer wrapped;
+	private EthernetView view;
+	private IPv4View ipView;
+
+	@Setup
+	public void setup()
+	{
+		BasePacket.setLazyDecoding(this.lazy);
+		this.bytes = Frames.build(this.frame);
+		this.packet = (Ethernet)new Ethernet().deserialize(this.bytes, 0, 
+				this.bytes.length);
+		this.buffer = ByteBuffer.allocate(2048);
+		this.wrapped = ByteBuffer.wrap(this.bytes);
+		this.view = new EthernetView();
+		this.ipView = new IPv4View();
+	}
+
+	/** Decode a frame, as VNSComm does for every received packet */
+	@Benchmark
+	public IPacket deserialize()
+	{ return new Ethernet().deserialize(this.bytes, 0, this.bytes.length); }
+
+	/** Decode a frame and read its IPv4 destination, as the router does */
+	@Benchmark
+	public int deserializeDestination()
+	{
+		Ethernet ether = (Ethernet)new Ethernet().deserialize(this.bytes, 0, 
+				this.bytes.length);
+		IPacket payload = ether.getPayload();
+		if (payload instanceof IPv4)
+		{ return ((IPv4)payload).getDestinationAddress(); }
+		return 0;
+	}
+
+	/** Read the same fields through the flyweight views */
+	@Benchmark
+	public int viewDestination()
+	{
+		EthernetView ether = this.view.wrap(this.wrapped, 0, this.bytes.length);
+		if (ether.getEtherType() == Ethernet.TYPE_IPv4)
+		{ return ether.getIPv4(this.ipView).getDestinationAddress(); }
+		return 0;
+	}
+
+	/** Encode a decoded frame into a new array */
+	@Benchmark
+	public byte[] serialize()
+	{ return this.packet.serialize(); }
+
+	/** Encode a decoded frame into a reused buffer */
+	@Benchmark
+	public int serializeTo()
+	{
+		this.buffer.clear();
+		this.packet.serializeTo(this.buffer);
+		return this.buffer.position();
+	}
+}
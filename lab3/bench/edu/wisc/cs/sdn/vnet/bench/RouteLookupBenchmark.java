@@ -0,0 +1,110 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.TimerWheel;
+import edu.wisc.cs.sdn.vnet.rt.ArpCache;
+import edu.wisc.cs.sdn.vnet.rt.RouteCache;
+import edu.wisc.cs.sdn.vnet.rt.RouteEntry;
+import edu.wisc.cs.sdn.vnet.rt.RouteTable;
+
+/**
+ * Longest-prefix match in the route table, with and without the DIR-24-8
+ * table and the forwarding cache in front of it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RouteLookupBenchmark
+{
+	/** Number of destinations cycled through; a power of two */
+	private static final int ADDRESSES = 1 << 16;
+
+	@Param({"100", "10000", "500000"})
+	public int routes;
+
+	@Param({"false", "true"})
+	public boolean flat;
+
+	private RouteTable routeTable;
+	private RouteCache routeCache;
+	private int[] addresses;
+	private int next;
+
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(42);
+		Iface iface = new Iface("eth0");
+		iface.setMacAddress(MACAddress.valueOf("00:00:00:00:00:01"));
+		this.routeTable = new RouteTable();
+		this.routeTable.setFlatLookup(this.flat);
+
+		// Roughly the shape of a BGP table: mostly /24s, the rest spread
+		// between /8 and /32
+		int[] prefixes = new int[this.routes];
+		int[] masks = new int[this.routes];
+		for (int i = 0; i < this.routes; i++)
+		{
+			int length = (random.nextInt(10) < 6) ? 24 : 8 + random.nextInt(25);
+			masks[i] = (-1 << (32 - length));
+			prefixes[i] = random.nextInt() & masks[i];
+			this.routeTable.insert(prefixes[i], random.nextInt(), masks[i], iface);
+		}
+
+		// Half the lookups hit a stored prefix, half are arbitrary
+		// Gateways are inserted as permanent mappings, so nothing is ever
+		// scheduled and the timers can be closed once the cache is built
+		TimerWheel timers = new TimerWheel("bench-timers",
+				TimerWheel.DEFAULT_TICK);
+		ArpCache arpCache = new ArpCache(timers, (ip, gateway, mac) -> { });
+		this.addresses = new int[ADDRESSES];
+		for (int i = 0; i < ADDRESSES; i++)
+		{
+			if (random.nextBoolean())
+			{
+				int r = random.nextInt(this.routes);
+				this.addresses[i] = prefixes[r] | (random.nextInt() & ~masks[r]);
+			}
+			else
+			{ this.addresses[i] = random.nextInt(); }
+		}
+		for (RouteEntry entry : this.routeTable.getRouteEntries())
+		{
+			if (arpCache.lookup(entry.getGatewayAddress()) == null)
+			{ arpCache.insert(MACAddress.valueOf(random.nextLong() & 0xffffffffffffL),
+					entry.getGatewayAddress()); }
+		}
+		this.routeCache = new RouteCache(this.routeTable, arpCache, 
+				RouteCache.DEFAULT_CAPACITY);
+		timers.close();
+	}
+
+	@Benchmark
+	public RouteEntry lookup()
+	{ return this.routeTable.lookup(this.addresses[this.next++ & (ADDRESSES - 1)]); }
+
+	/** Lookups through the forwarding cache, which hold 1024 destinations */
+	@Benchmark
+	public RouteCache.Entry cachedLookup()
+	{ return this.routeCache.lookup(this.addresses[this.next++ & 1023]); }
+}
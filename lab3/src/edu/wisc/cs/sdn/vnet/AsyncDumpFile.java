@@ -0,0 +1,369 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A PCAP dump file that is written by a background thread. Logging a packet
+ * only copies it into a preallocated ring buffer; the writer thread drains
+ * the ring into the file in large batches. Packets are dropped, and counted,
+ * if the ring is full. The file can be rotated once it reaches a size or
+ * age, and timestamps can be written with nanosecond resolution.
+ */
+public class AsyncDumpFile extends DumpFile
+{
+	private static final int TCPDUMP_MAGIC_NSEC = 0xa1b23c4d;
+
+	/** Size of the header preceding each packet in the file */
+	private static final int RECORD_HEADER_SIZE = 16;
+
+	/** Default size of the ring buffer, in bytes */
+	public static final int DEFAULT_RING_SIZE = 4 * 1024 * 1024;
+
+	/** How long the writer waits for more packets when the ring is empty */
+	private static final long WRITER_PARK_NANOS = 1000000;
+
+	/** Name of the first file; rotated files have a sequence number appended */
+	private String filename;
+
+	/** True if timestamps are written in nanoseconds rather than microseconds */
+	private boolean nanos;
+
+	/** Bytes after which to start a new file; 0 to never rotate by size */
+	private long rotateBytes;
+
+	/** Nanoseconds after which to start a new file; 0 to never rotate by age */
+	private long rotateNanos;
+
+	private byte[] ring;
+	private int mask;
+
+	/** Total bytes ever written to the ring by loggers */
+	private volatile long tail;
+
+	/** Total bytes ever drained from the ring by the writer */
+	private volatile long head;
+
+	/** Packets that did not fit in the ring */
+	private volatile long dropped;
+
+	private volatile boolean closed;
+
+	private Thread writer;
+
+	private WritableByteChannel channel;
+	private long fileBytes;
+	private long fileOpened;
+	private int fileCount;
+
+	/** Wall clock time, in nanoseconds, when System.nanoTime() was nanoBase */
+	private long wallBase;
+	private long nanoBase;
+
+	private AsyncDumpFile(String filename, int ringSize, boolean nanos,
+			long rotateBytes, long rotateNanos)
+	{
+		this.filename = filename;
+		this.nanos = nanos;
+		this.rotateBytes = rotateBytes;
+		this.rotateNanos = rotateNanos;
+
+		int capacity = Integer.highestOneBit(Math.max(ringSize, 65536));
+		if (capacity < ringSize)
+		{ capacity <<= 1; }
+		this.ring = new byte[capacity];
+		this.mask = capacity - 1;
+
+		this.wallBase = System.currentTimeMillis() * 1000000L;
+		this.nanoBase = System.nanoTime();
+	}
+
+	/**
+	 * Open a dump file that is written in the background.
+	 * @param filename name of the file; "-" for standard output
+	 * @param ringSize bytes of packet data that can be waiting to be written
+	 * @param nanos true to write timestamps with nanosecond resolution
+	 * @param rotateBytes size at which to start a new file; 0 for no limit
+	 * @param rotateSeconds age at which to start a new file; 0 for no limit
+	 * @return the dump file; null if it cannot be opened
+	 */
+	public static AsyncDumpFile open(String filename, int ringSize,
+			boolean nanos, long rotateBytes, int rotateSeconds)
+	{
+		if (filename.equals("-") && (rotateBytes > 0 || rotateSeconds > 0))
+		{
+			System.err.println("Cannot rotate standard output");
+			return null;
+		}
+
+		AsyncDumpFile dumpFile = new AsyncDumpFile(filename, ringSize, nanos,
+				rotateBytes, rotateSeconds * 1000000000L);
+		if (!dumpFile.openNext())
+		{ return null; }
+
+		dumpFile.writer = new Thread(dumpFile::drain, "pcap-writer");
+		dumpFile.writer.setDaemon(true);
+		dumpFile.writer.start();
+		return dumpFile;
+	}
+
+	/**
+	 * Open the next file in the rotation and write its header.
+	 * @return true if the file was opened, otherwise false
+	 */
+	private boolean openNext()
+	{
+		String name = this.filename;
+		if (this.fileCount > 0)
+		{ name = this.filename + "." + this.fileCount; }
+
+		try
+		{
+			if (this.filename.equals("-"))
+			{ this.channel = Channels.newChannel(System.out); }
+			else
+			{ this.channel = new FileOutputStream(name).getChannel(); }
+
+			ByteBuffer header = ByteBuffer.allocate(24);
+			header.putInt(this.nanos ? TCPDUMP_MAGIC_NSEC : TCPDUMP_MAGIC);
+			header.putShort(PCAP_VERSION_MAJOR);
+			header.putShort(PCAP_VERSION_MINOR);
+			header.putInt(THIS_ZONE);
+			header.putInt(SIG_FIGS);
+			header.putInt(SNAP_LEN);
+			header.putInt(LINKTYPE_ETHERNET);
+			header.flip();
+			while (header.hasRemaining())
+			{ this.channel.write(header); }
+		}
+		catch (IOException e)
+		{
+			System.err.println("Cannot open " + name);
+			return false;
+		}
+
+		this.fileBytes = 24;
+		this.fileOpened = System.nanoTime();
+		this.fileCount++;
+		return true;
+	}
+
+	/**
+	 * Log a raw Ethernet frame. The frame is copied, so the buffer can be
+	 * reused as soon as this returns.
+	 * @param buf buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 */
+	@Override
+	public synchronized void dump(ByteBuffer buf, int offset, int length)
+	{
+		if (this.closed)
+		{ return; }
+
+		int captured = Math.min(length, SNAP_LEN);
+		int recordSize = RECORD_HEADER_SIZE + captured;
+		long pos = this.tail;
+		if (recordSize > this.ring.length - (pos - this.head))
+		{
+			this.dropped++;
+			return;
+		}
+
+		long now = this.wallBase + (System.nanoTime() - this.nanoBase);
+		int sec = (int)(now / 1000000000L);
+		int frac = (int)(now % 1000000000L);
+		if (!this.nanos)
+		{ frac /= 1000; }
+
+		this.putInt(pos, sec);
+		this.putInt(pos + 4, frac);
+		this.putInt(pos + 8, captured);
+		this.putInt(pos + 12, length);
+
+		// Copy the frame, wrapping around the end of the ring if needed
+		int start = (int)((pos + RECORD_HEADER_SIZE) & this.mask);
+		int first = Math.min(captured, this.ring.length - start);
+		buf.get(offset, this.ring, start, first);
+		if (first < captured)
+		{ buf.get(offset + first, this.ring, 0, captured - first); }
+
+		this.tail = pos + recordSize;
+	}
+
+	private void putInt(long pos, int value)
+	{
+		this.ring[(int)(pos & this.mask)] = (byte)(value >>> 24);
+		this.ring[(int)((pos + 1) & this.mask)] = (byte)(value >>> 16);
+		this.ring[(int)((pos + 2) & this.mask)] = (byte)(value >>> 8);
+		this.ring[(int)((pos + 3) & this.mask)] = (byte)value;
+	}
+
+	private int getInt(long pos)
+	{
+		return ((this.ring[(int)(pos & this.mask)] & 0xff) << 24)
+				| ((this.ring[(int)((pos + 1) & this.mask)] & 0xff) << 16)
+				| ((this.ring[(int)((pos + 2) & this.mask)] & 0xff) << 8)
+				| (this.ring[(int)((pos + 3) & this.mask)] & 0xff);
+	}
+
+	/**
+	 * Body of the writer thread: repeatedly write everything in the ring to
+	 * the file, until the file is closed and the ring is empty.
+	 */
+	private void drain()
+	{
+		while (true)
+		{
+			long end = this.tail;
+			if (this.head == end)
+			{
+				if (this.closed)
+				{ break; }
+				LockSupport.parkNanos(WRITER_PARK_NANOS);
+				continue;
+			}
+
+			// Write whole records, stopping early if the file is due to rotate
+			long pos = this.head;
+			boolean rotate = (this.rotateNanos > 0
+					&& System.nanoTime() - this.fileOpened >= this.rotateNanos);
+			long limit = end;
+			if (this.rotateBytes > 0)
+			{
+				limit = pos;
+				long size = this.fileBytes;
+				while (limit < end)
+				{
+					int recordSize = RECORD_HEADER_SIZE + this.getInt(limit + 8);
+					if (size + recordSize > this.rotateBytes && size > 24)
+					{
+						rotate = true;
+						break;
+					}
+					size += recordSize;
+					limit += recordSize;
+				}
+			}
+
+			if (rotate && limit == pos)
+			{
+				if (!this.rotate())
+				{ break; }
+				continue;
+			}
+
+			if (!this.write(pos, limit))
+			{ break; }
+			this.fileBytes += limit - pos;
+			this.head = limit;
+
+			if (rotate && !this.rotate())
+			{ break; }
+		}
+
+		try
+		{ this.channel.close(); }
+		catch (IOException e) { }
+	}
+
+	/**
+	 * Write a range of the ring to the file.
+	 * @return true if the range was written, otherwise false
+	 */
+	private boolean write(long from, long to)
+	{
+		int start = (int)(from & this.mask);
+		int length = (int)(to - from);
+		int first = Math.min(length, this.ring.length - start);
+		ByteBuffer[] buffers;
+		if (first == length)
+		{ buffers = new ByteBuffer[] { ByteBuffer.wrap(this.ring, start, length) }; }
+		else
+		{
+			buffers = new ByteBuffer[] {
+					ByteBuffer.wrap(this.ring, start, first),
+					ByteBuffer.wrap(this.ring, 0, length - first) };
+		}
+
+		try
+		{
+			ByteBuffer last = buffers[buffers.length - 1];
+			if (this.channel instanceof GatheringByteChannel)
+			{
+				while (last.hasRemaining())
+				{ ((GatheringByteChannel)this.channel).write(buffers); }
+			}
+			else
+			{
+				for (ByteBuffer buffer : buffers)
+				{
+					while (buffer.hasRemaining())
+					{ this.channel.write(buffer); }
+				}
+			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			this.closed = true;
+			return false;
+		}
+	}
+
+	/**
+	 * Close the current file and start the next one.
+	 * @return true if the next file was opened, otherwise false
+	 */
+	private boolean rotate()
+	{
+		try
+		{
+			if (this.channel instanceof FileChannel)
+			{ ((FileChannel)this.channel).force(false); }
+			this.channel.close();
+		}
+		catch (IOException e)
+		{ e.printStackTrace(); }
+
+		if (!this.openNext())
+		{
+			this.closed = true;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of packets that were not logged because the ring was full
+	 */
+	public long getDropped()
+	{ return this.dropped; }
+
+	/**
+	 * Write any packets still in the ring and close the file.
+	 */
+	@Override
+	public void close()
+	{
+		this.closed = true;
+		LockSupport.unpark(this.writer);
+		try
+		{ this.writer.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+
+		if (this.dropped > 0)
+		{
+			System.err.println(String.format("Dump file dropped %d packets",
+					this.dropped));
+		}
+	}
+}
@@ -0,0 +1,390 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * A filter that selects which packets are logged to a dump file. Filters
+ * are written in a small tcpdump-like language and compiled once into a
+ * tree of tests that are evaluated directly against a frame's bytes, so a
+ * packet that does not match is rejected without being copied or decoded.
+ * <p>
+ * Primitives:
+ * <pre>
+ *   ip | arp | icmp | tcp | udp | rip
+ *   ether proto (ip|arp|NUMBER)
+ *   proto (icmp|tcp|udp|NUMBER)
+ *   [src|dst] host ADDRESS
+ *   [src|dst] net ADDRESS/LENGTH
+ *   [src|dst] port NUMBER
+ *   iface NAME
+ *   in | out
+ * </pre>
+ * Primitives can be combined with <code>and</code>, <code>or</code>,
+ * <code>not</code> (or <code>&amp;&amp;</code>, <code>||</code>,
+ * <code>!</code>) and parentheses; adjacent primitives are and-ed, e.g.
+ * <code>udp port 520 or (in and src net 10.0.1.0/24)</code>.
+ */
+public class CaptureFilter
+{
+	/** A test applied to a frame */
+	private interface Test
+	{
+		boolean matches(ByteBuffer buf, int offset, int length,
+				String ifaceName, boolean outbound);
+	}
+
+	private static final short TYPE_VLAN = (short)0x8100;
+
+	/** Which address or port of a packet a primitive applies to */
+	private static final int EITHER = 0, SRC = 1, DST = 2;
+
+	private String expression;
+	private Test test;
+
+	private CaptureFilter(String expression, Test test)
+	{
+		this.expression = expression;
+		this.test = test;
+	}
+
+	/**
+	 * Compile a filter expression.
+	 * @param expression the filter
+	 * @return the compiled filter
+	 * @throws IllegalArgumentException if the expression is not valid
+	 */
+	public static CaptureFilter compile(String expression)
+	{
+		Parser parser = new Parser(expression);
+		Test test = parser.parseOr();
+		if (parser.peek() != null)
+		{ throw parser.error("unexpected '" + parser.peek() + "'"); }
+		return new CaptureFilter(expression, test);
+	}
+
+	/**
+	 * Check whether a frame should be logged.
+	 * @param buf buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface the frame was received or sent
+	 *        on; null if unknown
+	 * @param outbound true if the frame is being sent, false if it was
+	 *        received
+	 * @return true if the frame matches the filter
+	 */
+	public boolean matches(ByteBuffer buf, int offset, int length,
+			String ifaceName, boolean outbound)
+	{ return this.test.matches(buf, offset, length, ifaceName, outbound); }
+
+	public String toString()
+	{ return this.expression; }
+
+	/*
+	 * Frame accessors shared by the tests. Each returns -1 if the frame is
+	 * too short or of the wrong type.
+	 */
+
+	/** @return offset of the EtherType field, after any VLAN tag */
+	private static int etherTypeOffset(ByteBuffer buf, int offset, int length)
+	{
+		if (length < 14)
+		{ return -1; }
+		if (TYPE_VLAN == buf.getShort(offset + 12))
+		{ return (length < 18 ? -1 : offset + 16); }
+		return offset + 12;
+	}
+
+	/** @return offset of the IPv4 header */
+	private static int ipOffset(ByteBuffer buf, int offset, int length)
+	{
+		int typeOffset = etherTypeOffset(buf, offset, length);
+		if (typeOffset < 0 || buf.getShort(typeOffset) != Ethernet.TYPE_IPv4
+				|| typeOffset + 2 + 20 > offset + length)
+		{ return -1; }
+		return typeOffset + 2;
+	}
+
+	/** @return offset of the UDP or TCP header of an unfragmented packet */
+	private static int transportOffset(ByteBuffer buf, int offset, int length)
+	{
+		int ip = ipOffset(buf, offset, length);
+		if (ip < 0)
+		{ return -1; }
+		byte protocol = buf.get(ip + 9);
+		if ((protocol != IPv4.PROTOCOL_UDP && protocol != IPv4.PROTOCOL_TCP)
+				|| (buf.getShort(ip + 6) & 0x1fff) != 0)
+		{ return -1; }
+		int transport = ip + (buf.get(ip) & 0xf) * 4;
+		return (transport + 4 > offset + length ? -1 : transport);
+	}
+
+	private static Test etherType(short type)
+	{
+		return (buf, off, len, iface, out) -> {
+			int typeOffset = etherTypeOffset(buf, off, len);
+			return (typeOffset >= 0 && buf.getShort(typeOffset) == type);
+		};
+	}
+
+	private static Test protocol(byte protocol)
+	{
+		return (buf, off, len, iface, out) -> {
+			int ip = ipOffset(buf, off, len);
+			return (ip >= 0 && buf.get(ip + 9) == protocol);
+		};
+	}
+
+	private static Test net(int which, int address, int mask)
+	{
+		int prefix = address & mask;
+		return (buf, off, len, iface, out) -> {
+			int ip = ipOffset(buf, off, len);
+			if (ip < 0)
+			{ return false; }
+			return (which != DST && (buf.getInt(ip + 12) & mask) == prefix)
+					|| (which != SRC && (buf.getInt(ip + 16) & mask) == prefix);
+		};
+	}
+
+	private static Test port(int which, short port)
+	{
+		return (buf, off, len, iface, out) -> {
+			int transport = transportOffset(buf, off, len);
+			if (transport < 0)
+			{ return false; }
+			return (which != DST && buf.getShort(transport) == port)
+					|| (which != SRC && buf.getShort(transport + 2) == port);
+		};
+	}
+
+	private static Test iface(String name)
+	{ return (buf, off, len, iface, out) -> name.equals(iface); }
+
+	private static Test direction(boolean outbound)
+	{ return (buf, off, len, iface, out) -> (out == outbound); }
+
+	private static Test and(Test a, Test b)
+	{
+		return (buf, off, len, iface, out) -> a.matches(buf, off, len, iface, out)
+				&& b.matches(buf, off, len, iface, out);
+	}
+
+	private static Test or(Test a, Test b)
+	{
+		return (buf, off, len, iface, out) -> a.matches(buf, off, len, iface, out)
+				|| b.matches(buf, off, len, iface, out);
+	}
+
+	private static Test not(Test a)
+	{ return (buf, off, len, iface, out) -> !a.matches(buf, off, len, iface, out); }
+
+	/**
+	 * Recursive descent parser for filter expressions.
+	 */
+	private static class Parser
+	{
+		/** Operators, parentheses, and words made of anything else */
+		private static final Pattern TOKEN = 
+				Pattern.compile("&&|\\|\\||[()!]|[^\\s()!&|]+");
+
+		private String expression;
+		private List<String> tokens;
+		private int pos;
+
+		Parser(String expression)
+		{
+			this.expression = expression;
+			this.tokens = new ArrayList<String>();
+			Matcher matcher = TOKEN.matcher(expression);
+			while (matcher.find())
+			{ this.tokens.add(matcher.group()); }
+		}
+
+		String peek()
+		{ return (this.pos < this.tokens.size() ? this.tokens.get(this.pos) : null); }
+
+		String next()
+		{
+			String token = this.peek();
+			if (null == token)
+			{ throw this.error("unexpected end of filter"); }
+			this.pos++;
+			return token;
+		}
+
+		boolean accept(String... choices)
+		{
+			String token = this.peek();
+			for (String choice : choices)
+			{
+				if (choice.equals(token))
+				{
+					this.pos++;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		IllegalArgumentException error(String message)
+		{
+			return new IllegalArgumentException(String.format(
+					"Invalid filter \"%s\": %s", this.expression, message));
+		}
+
+		Test parseOr()
+		{
+			Test test = this.parseAnd();
+			while (this.accept("or", "||"))
+			{ test = or(test, this.parseAnd()); }
+			return test;
+		}
+
+		Test parseAnd()
+		{
+			// Adjacent primitives, as in "udp port 520", are implicitly and-ed
+			Test test = this.parseNot();
+			while (this.accept("and", "&&") || this.startsPrimitive())
+			{ test = and(test, this.parseNot()); }
+			return test;
+		}
+
+		boolean startsPrimitive()
+		{
+			String token = this.peek();
+			return (token != null && !token.equals(")") && !token.equals("or")
+					&& !token.equals("||"));
+		}
+
+		Test parseNot()
+		{
+			if (this.accept("not", "!"))
+			{ return not(this.parseNot()); }
+			if (this.accept("("))
+			{
+				Test test = this.parseOr();
+				if (!this.accept(")"))
+				{ throw this.error("missing ')'"); }
+				return test;
+			}
+			return this.parsePrimitive();
+		}
+
+		Test parsePrimitive()
+		{
+			String token = this.next();
+			switch (token)
+			{
+			case "ip":
+				return etherType(Ethernet.TYPE_IPv4);
+			case "arp":
+				return etherType(Ethernet.TYPE_ARP);
+			case "icmp":
+				return protocol(IPv4.PROTOCOL_ICMP);
+			case "tcp":
+				return protocol(IPv4.PROTOCOL_TCP);
+			case "udp":
+				return protocol(IPv4.PROTOCOL_UDP);
+			case "rip":
+				return and(protocol(IPv4.PROTOCOL_UDP), port(EITHER, UDP.RIP_PORT));
+			case "ether":
+				if (!this.accept("proto"))
+				{ throw this.error("expected 'proto' after 'ether'"); }
+				return etherType(this.parseEtherType());
+			case "proto":
+				return protocol(this.parseProtocol());
+			case "iface":
+				return iface(this.next());
+			case "in":
+				return direction(false);
+			case "out":
+				return direction(true);
+			case "src":
+				return this.parseAddressOrPort(SRC);
+			case "dst":
+				return this.parseAddressOrPort(DST);
+			case "host":
+			case "net":
+			case "port":
+				this.pos--;
+				return this.parseAddressOrPort(EITHER);
+			default:
+				throw this.error("unknown primitive '" + token + "'");
+			}
+		}
+
+		Test parseAddressOrPort(int which)
+		{
+			String kind = this.next();
+			String value = this.next();
+			switch (kind)
+			{
+			case "host":
+				return net(which, this.parseAddress(value), 0xffffffff);
+			case "net":
+				int slash = value.indexOf('/');
+				if (slash < 0)
+				{ throw this.error("expected ADDRESS/LENGTH after 'net'"); }
+				int prefixLength = this.parseNumber(value.substring(slash + 1), 32);
+				int mask = (0 == prefixLength ? 0 : -1 << (32 - prefixLength));
+				return net(which, this.parseAddress(value.substring(0, slash)),
+						mask);
+			case "port":
+				return port(which, (short)this.parseNumber(value, 65535));
+			default:
+				throw this.error("expected 'host', 'net' or 'port', not '"
+						+ kind + "'");
+			}
+		}
+
+		short parseEtherType()
+		{
+			String token = this.next();
+			if (token.equals("ip"))
+			{ return Ethernet.TYPE_IPv4; }
+			if (token.equals("arp"))
+			{ return Ethernet.TYPE_ARP; }
+			return (short)this.parseNumber(token, 65535);
+		}
+
+		byte parseProtocol()
+		{
+			String token = this.next();
+			if (token.equals("icmp"))
+			{ return IPv4.PROTOCOL_ICMP; }
+			if (token.equals("tcp"))
+			{ return IPv4.PROTOCOL_TCP; }
+			if (token.equals("udp"))
+			{ return IPv4.PROTOCOL_UDP; }
+			return (byte)this.parseNumber(token, 255);
+		}
+
+		int parseAddress(String token)
+		{
+			if (!token.matches("\\d+\\.\\d+\\.\\d+\\.\\d+"))
+			{ throw this.error("invalid address '" + token + "'"); }
+			return IPv4.toIPv4Address(token);
+		}
+
+		int parseNumber(String token, int max)
+		{
+			int value;
+			try
+			{ value = Integer.decode(token); }
+			catch (NumberFormatException e)
+			{ throw this.error("invalid number '" + token + "'"); }
+			if (value < 0 || value > max)
+			{ throw this.error("number out of range '" + token + "'"); }
+			return value;
+		}
+	}
+}
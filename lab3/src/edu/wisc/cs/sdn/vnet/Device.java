@@ -4,6 +4,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
 
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
 
@@ -25,6 +26,9 @@ public abstract class Device
 	/** Virtual Network Simulator communication manager for the device */
 	private VNSComm vnsComm;
 	
+	/** Runs everything the device needs to time out */
+	private TimerWheel timers;
+	
 	/**
 	 * Creates a device.
 	 * @param host hostname for the device
@@ -36,6 +40,7 @@ public abstract class Device
 		this.logfile = logfile;
 		this.interfaces = new HashMap<String,Iface>();
 		this.vnsComm = null;
+		this.timers = new TimerWheel(host + "-timers", TimerWheel.DEFAULT_TICK);
 	}
 	
 	/**
@@ -65,6 +70,12 @@ public abstract class Device
 	public Map<String,Iface> getInterfaces()
 	{ return this.interfaces; }
 	
+	/**
+	 * @return timer wheel that runs everything the device needs to time out
+	 */
+	public TimerWheel getTimers()
+	{ return this.timers; }
+	
 	/**
 	 * @param vnsComm Virtual Network System communication manager for the router
 	 */
@@ -72,10 +83,12 @@ public abstract class Device
 	{ this.vnsComm = vnsComm; }
 	
 	/**
-	 * Close the PCAP dump file for the router, if logging is enabled.
+	 * Stop the device's timers and close the PCAP dump file for the router,
+	 * if logging is enabled.
 	 */
 	public void destroy()
 	{
+		this.timers.close();
 		if (logfile != null)
 		{ this.logfile.close(); }
 	}
@@ -91,6 +104,13 @@ public abstract class Device
 		return iface;
 	}
 	
+	/**
+	 * Called once the device's interfaces have been added or their addresses
+	 * have changed, so devices can rebuild anything derived from them.
+	 */
+	public void interfacesChanged()
+	{ }
+	
 	/**
 	 * Gets an interface on the device by the interface's name.
 	 * @param ifaceName name of the desired interface
@@ -100,6 +120,22 @@ public abstract class Device
 	public Iface getInterface(String ifaceName)
 	{ return this.interfaces.get(ifaceName); }
 	
+	/**
+	 * Start a batch of sends. Packets this thread sends before the matching
+	 * call to {@link #endBatch()} are written to the server together rather
+	 * than one at a time. Batches may be nested.
+	 */
+	public void beginBatch()
+	{ this.vnsComm.beginBatch(); }
+	
+	/**
+	 * End a batch of sends started with {@link #beginBatch()}.
+	 * @return true if the packets in the batch were sent successfully, 
+	 *         otherwise false
+	 */
+	public boolean endBatch()
+	{ return this.vnsComm.endBatch(); }
+	
 	/**
 	 * Send an Ethernet packet out a specific interface.
 	 * @param etherPacket an Ethernet packet with all fields, encapsulated
@@ -110,5 +146,56 @@ public abstract class Device
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
 	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
 	
+	/**
+	 * Send a raw Ethernet frame out a specific interface without decoding it.
+	 * @param frame view of a complete Ethernet frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(EthernetView frame, Iface iface)
+	{
+		return this.vnsComm.sendFrame(frame.getBuffer(), frame.getOffset(), 
+				frame.getLength(), iface.getName());
+	}
+	
+	/**
+	 * Handle a raw Ethernet frame received on a specific interface, before
+	 * it is decoded into an {@link Ethernet} packet. Devices override this to
+	 * handle common frames without allocating; the frame and its buffer are
+	 * only valid until the method returns.
+	 * @param frame view of the Ethernet frame that was received
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, false if it should be decoded
+	 *         and passed to {@link #handlePacket(Ethernet, Iface)}
+	 */
+	public boolean handleFrame(EthernetView frame, Iface inIface)
+	{ return false; }
+	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
+	
+	/**
+	 * Pass a frame received on an interface to the device: first as a raw 
+	 * frame to {@link #handleFrame(EthernetView, Iface)} and, if that does
+	 * not handle it, decoded to {@link #handlePacket(Ethernet, Iface)}.
+	 * @param frame view of the Ethernet frame that was received; only valid
+	 *        until the method returns
+	 * @param inIface the interface on which the frame was received
+	 */
+	public void receiveFrame(EthernetView frame, Iface inIface)
+	{
+		if (inIface != null && frame.getLength() >= 14 
+				&& this.handleFrame(frame, inIface))
+		{ return; }
+		
+		// The frame's buffer is reused, but decoded packets can outlive this
+		// call (e.g., while waiting for an ARP reply) and lazily decoded
+		// payloads refer to the bytes they came from, so copy the frame
+		byte[] data = new byte[frame.getLength()];
+		frame.getBuffer().get(frame.getOffset(), data);
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.deserialize(data, 0, data.length);
+		
+		// Pass to device, student's code should take over here
+		this.handlePacket(etherPacket, inIface);
+	}
 }
@@ -4,39 +4,55 @@ import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import net.floodlightcontroller.packet.Ethernet;
 
 public class DumpFile
 {
-	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
-	private static final short PCAP_VERSION_MAJOR = 2;
-	private static final short PCAP_VERSION_MINOR = 4;
-	private static final int THIS_ZONE = 0;
-	private static final int SIG_FIGS = 0;
-	private static final int SNAP_LEN = 65535;
-	private static final int LINKTYPE_ETHERNET = 1;
+	protected static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
+	protected static final short PCAP_VERSION_MAJOR = 2;
+	protected static final short PCAP_VERSION_MINOR = 4;
+	protected static final int THIS_ZONE = 0;
+	protected static final int SIG_FIGS = 0;
+	protected static final int SNAP_LEN = 65535;
+	protected static final int LINKTYPE_ETHERNET = 1;
 	
 	private FileOutputStream fileStream;
 	DataOutputStream outStream;
 	
+	/** Buffer reused to serialize packets that are logged */
+	private ByteBuffer dumpBuffer = ByteBuffer.allocate(1514);
+	
+	/** Buffer reused to assemble each record: its header, then the frame */
+	private byte[] record = new byte[16 + 1514];
+	
+	/** Filter selecting which frames are logged; null to log every frame */
+	private CaptureFilter filter;
+	
 	private DumpFile(FileOutputStream fileStream)
 	{
 		this.fileStream = fileStream;
-		outStream = new DataOutputStream(fileStream);
+		if (fileStream != null)
+		{ outStream = new DataOutputStream(fileStream); }
+		else
+		{ outStream = new DataOutputStream(System.out); }
 	}
 	
-	private DumpFile()
+	/**
+	 * Creates a dump file that writes packets itself.
+	 */
+	protected DumpFile()
 	{
 		this.fileStream = null;
-		outStream = new DataOutputStream(System.out);
+		this.outStream = null;
 	}
 	
 	public static DumpFile open(String filename)
 	{
 		DumpFile dumpFile = null;
 		if (filename.equals("-"))
-		{ dumpFile = new DumpFile(); }
+		{ dumpFile = new DumpFile(null); }
 		else
 		{
 			try 
@@ -75,25 +91,92 @@ public class DumpFile
 
 	}
 	
-	public void dump(Ethernet etherPacket)
+	/**
+	 * @param filter filter selecting which frames are logged; null to log
+	 *        every frame
+	 */
+	public void setFilter(CaptureFilter filter)
+	{ this.filter = filter; }
+	
+	/**
+	 * @return filter selecting which frames are logged; null if every frame
+	 *         is logged
+	 */
+	public CaptureFilter getFilter()
+	{ return this.filter; }
+	
+	/**
+	 * Log a raw Ethernet frame that was received or sent on an interface,
+	 * if it matches the dump file's filter. Frames that do not match are
+	 * not copied.
+	 * @param buf buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface the frame was received or
+	 *        sent on
+	 * @param outbound true if the frame is being sent, false if it was
+	 *        received
+	 */
+	public void dump(ByteBuffer buf, int offset, int length, String ifaceName,
+			boolean outbound)
 	{
-		byte[] buf = etherPacket.serialize();
+		CaptureFilter filter = this.filter;
+		if (null == filter 
+				|| filter.matches(buf, offset, length, ifaceName, outbound))
+		{ this.dump(buf, offset, length); }
+	}
+	
+	/**
+	 * Log a parsed Ethernet packet. The packet is serialized again, so this
+	 * should only be used for packets that were never on the wire; frames
+	 * that were received or sent should be logged from their bytes with
+	 * {@link #dump(ByteBuffer, int, int)}.
+	 * @param etherPacket the packet to log
+	 */
+	public synchronized void dump(Ethernet etherPacket)
+	{
+		int length = etherPacket.getSerializedLength();
+		if (length > this.dumpBuffer.capacity())
+		{ this.dumpBuffer = ByteBuffer.allocate(length); }
+		this.dumpBuffer.clear();
+		etherPacket.serializeTo(this.dumpBuffer);
+		this.dump(this.dumpBuffer, 0, length);
+	}
+	
+	/**
+	 * Log a raw Ethernet frame exactly as it appears in a buffer.
+	 * @param buf buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 */
+	public synchronized void dump(ByteBuffer buf, int offset, int length)
+	{
+		if (16 + length > this.record.length)
+		{ this.record = new byte[16 + length]; }
 		
-		int sec = (int)(System.currentTimeMillis()/1000);
-		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
+		long now = System.currentTimeMillis();
+		putInt(this.record, 0, (int)(now/1000));
+		putInt(this.record, 4, (int)((now % 1000)*1000));
+		putInt(this.record, 8, length);
+		putInt(this.record, 12, length);
+		buf.get(offset, this.record, 16, length);
 		try
 		{
-			this.outStream.writeInt(sec);
-			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
+			this.outStream.write(this.record, 0, 16 + length);
 			this.outStream.flush();
 		}
 		catch (IOException e)
 		{ e.printStackTrace(); }
 	}
 	
+	private static void putInt(byte[] data, int offset, int value)
+	{
+		data[offset] = (byte)(value >>> 24);
+		data[offset + 1] = (byte)(value >>> 16);
+		data[offset + 2] = (byte)(value >>> 8);
+		data[offset + 3] = (byte)value;
+	}
+	
 	public void close()
 	{
 		try
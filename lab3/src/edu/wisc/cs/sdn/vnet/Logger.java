@@ -0,0 +1,191 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A leveled logger for devices. Messages below the current level are
+ * discarded before any string is built; messages that are logged are
+ * queued and printed by a background thread, so logging never blocks
+ * the thread handling packets. If the queue is full, messages are dropped
+ * and the number dropped is reported with the next message printed.
+ * <p>
+ * Messages that are expensive to build should be passed as a supplier, e.g.
+ * <code>log.debug(() -&gt; "Received " + etherPacket)</code>, which is
+ * only called if the message will be logged.
+ */
+public class Logger
+{
+	public enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+	/** Maximum number of messages waiting to be printed */
+	private static final int QUEUE_SIZE = 8192;
+
+	/** Level below which messages are discarded */
+	private static volatile Level level = Level.INFO;
+
+	/** Name printed with each message */
+	private String name;
+
+	private Logger(String name)
+	{ this.name = name; }
+
+	/**
+	 * @param cls the class that will be logging
+	 * @return a logger named after the class
+	 */
+	public static Logger getLogger(Class<?> cls)
+	{ return new Logger(cls.getSimpleName()); }
+
+	/**
+	 * @param level level below which messages are discarded
+	 */
+	public static void setLevel(Level level)
+	{ Logger.level = level; }
+
+	/**
+	 * @return level below which messages are discarded
+	 */
+	public static Level getLevel()
+	{ return Logger.level; }
+
+	/**
+	 * @param name name of a level, in any case
+	 * @return the level
+	 * @throws IllegalArgumentException if no level has the name
+	 */
+	public static Level parseLevel(String name)
+	{ return Level.valueOf(name.toUpperCase()); }
+
+	/**
+	 * @return true if messages at the level are logged
+	 */
+	public boolean isEnabled(Level level)
+	{ return level.compareTo(Logger.level) >= 0; }
+
+	public void log(Level level, String message)
+	{
+		if (this.isEnabled(level))
+		{ Appender.INSTANCE.append(level, this.name, message); }
+	}
+
+	public void log(Level level, Supplier<String> message)
+	{
+		if (this.isEnabled(level))
+		{ Appender.INSTANCE.append(level, this.name, message.get()); }
+	}
+
+	public void trace(String message)
+	{ this.log(Level.TRACE, message); }
+
+	public void trace(Supplier<String> message)
+	{ this.log(Level.TRACE, message); }
+
+	public void debug(String message)
+	{ this.log(Level.DEBUG, message); }
+
+	public void debug(Supplier<String> message)
+	{ this.log(Level.DEBUG, message); }
+
+	public void info(String message)
+	{ this.log(Level.INFO, message); }
+
+	public void info(Supplier<String> message)
+	{ this.log(Level.INFO, message); }
+
+	public void warn(String message)
+	{ this.log(Level.WARN, message); }
+
+	public void warn(Supplier<String> message)
+	{ this.log(Level.WARN, message); }
+
+	public void error(String message)
+	{ this.log(Level.ERROR, message); }
+
+	public void error(Supplier<String> message)
+	{ this.log(Level.ERROR, message); }
+
+	/**
+	 * Prints logged messages from a background thread. Warnings and errors
+	 * go to standard error, everything else to standard output. The
+	 * appender is only created once a message is logged.
+	 */
+	private static class Appender implements Runnable
+	{
+		static final Appender INSTANCE = new Appender();
+
+		/** A message waiting to be printed */
+		private static class Entry
+		{
+			Level level;
+			String name;
+			String message;
+		}
+
+		private BlockingQueue<Entry> queue;
+		private AtomicLong dropped;
+
+		private Appender()
+		{
+			this.queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+			this.dropped = new AtomicLong();
+
+			Thread writer = new Thread(this, "log-writer");
+			writer.setDaemon(true);
+			writer.start();
+
+			// Print whatever is still queued when the JVM exits
+			Runtime.getRuntime().addShutdownHook(new Thread(this::drain));
+		}
+
+		void append(Level level, String name, String message)
+		{
+			Entry entry = new Entry();
+			entry.level = level;
+			entry.name = name;
+			entry.message = message;
+			if (!this.queue.offer(entry))
+			{ this.dropped.incrementAndGet(); }
+		}
+
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				try
+				{
+					Entry entry = this.queue.poll(1, TimeUnit.SECONDS);
+					if (entry != null)
+					{ this.print(entry); }
+				}
+				catch (InterruptedException e)
+				{ return; }
+			}
+		}
+
+		private synchronized void drain()
+		{
+			Entry entry;
+			while ((entry = this.queue.poll()) != null)
+			{ this.print(entry); }
+		}
+
+		private synchronized void print(Entry entry)
+		{
+			PrintStream out = (entry.level.compareTo(Level.WARN) >= 0
+					? System.err : System.out);
+			long dropped = this.dropped.getAndSet(0);
+			if (dropped > 0)
+			{ out.println(String.format("(%d log messages dropped)", dropped)); }
+			if (Level.INFO == entry.level)
+			{ out.println(entry.message); }
+			else
+			{ out.println(entry.level + " " + entry.name + ": " + entry.message); }
+		}
+	}
+}
@@ -1,10 +1,13 @@
 package edu.wisc.cs.sdn.vnet;
 
+import edu.wisc.cs.sdn.vnet.rt.IcmpRateLimiter;
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
 
+import net.floodlightcontroller.packet.BasePacket;
+
 public class Main 
 {
 	private static final short DEFAULT_PORT = 8888;
@@ -17,6 +20,17 @@ public class Main
 		String routeTableFile = null;
 		String arpCacheFile = null;
 		String logfile = null;
+		String filter = null;
+		boolean flatLookup = false;
+		boolean lazyDecoding = false;
+		Logger.Level logLevel = Logger.Level.INFO;
+		boolean asyncLog = false;
+		boolean nanoLog = false;
+		long rotateBytes = 0;
+		int rotateSeconds = 0;
+		long flushWindow = VNSComm.DEFAULT_FLUSH_WINDOW;
+		int workers = 0;
+		String icmpLimit = null;
 		short port = DEFAULT_PORT;
 		VNSComm vnsComm = null;
 		Device dev = null;
@@ -38,10 +52,46 @@ public class Main
 			{ server = args[++i]; }
 			else if (arg.equals("-l"))
 			{ logfile = args[++i]; }
+			else if (arg.equals("-f"))
+			{ filter = args[++i]; }
 			else if (arg.equals("-r"))
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-d"))
+			{ flatLookup = true; }
+			else if (arg.equals("-z"))
+			{ lazyDecoding = true; }
+			else if (arg.equals("-W"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-I"))
+			{ icmpLimit = args[++i]; }
+			else if (arg.equals("-b"))
+			{ flushWindow = Long.parseLong(args[++i]); }
+			else if (arg.equals("-L"))
+			{
+				try
+				{ logLevel = Logger.parseLevel(args[++i]); }
+				catch (IllegalArgumentException e)
+				{
+					usage();
+					return;
+				}
+			}
+			else if (arg.equals("-A"))
+			{ asyncLog = true; }
+			else if (arg.equals("-N"))
+			{ asyncLog = nanoLog = true; }
+			else if (arg.equals("-R"))
+			{
+				asyncLog = true;
+				rotateBytes = Long.parseLong(args[++i]) * 1024 * 1024;
+			}
+			else if (arg.equals("-T"))
+			{
+				asyncLog = true;
+				rotateSeconds = Integer.parseInt(args[++i]);
+			}
 		}
 		
 		if (null == host)
@@ -50,16 +100,39 @@ public class Main
 			return;
 		}
 		
+		Logger.setLevel(logLevel);
+		
+		// Decode packet payloads only when a device looks at them
+		BasePacket.setLazyDecoding(lazyDecoding);
+		
 		// Open PCAP dump file for logging packets sent/received by the router
 		DumpFile dump = null;
 		if (logfile != null)
 		{
-			dump = DumpFile.open(logfile);
+			if (asyncLog)
+			{
+				dump = AsyncDumpFile.open(logfile, AsyncDumpFile.DEFAULT_RING_SIZE,
+						nanoLog, rotateBytes, rotateSeconds);
+			}
+			else
+			{ dump = DumpFile.open(logfile); }
 			if (null == dump)
 			{
 				System.err.println("Error opening up dump file "+logfile);
 				return;
 			}
+			
+			// Only log packets that match the capture filter
+			if (filter != null)
+			{
+				try
+				{ dump.setFilter(CaptureFilter.compile(filter)); }
+				catch (IllegalArgumentException e)
+				{
+					System.err.println(e.getMessage());
+					return;
+				}
+			}
 		}
 		
 		if (host.startsWith("s"))
@@ -68,6 +141,22 @@ public class Main
 		{
 			// Create router instance
 			dev = new Router(host, dump);
+			
+			// Use the DIR-24-8 forwarding table for route lookups
+			if (flatLookup)
+			{ ((Router)dev).getRouteTable().setFlatLookup(true); }
+			
+			// Limit how often ICMP error messages are sent
+			if (icmpLimit != null)
+			{
+				try
+				{ ((Router)dev).getIcmpLimiter().configure(icmpLimit); }
+				catch (IllegalArgumentException e)
+				{
+					usage();
+					return;
+				}
+			}
 		}
 		else 
 		{
@@ -79,6 +168,7 @@ public class Main
 		System.out.println(String.format("Connecting to server %s:%d", 
 				server, port));
 		vnsComm = new VNSComm(dev);
+		vnsComm.setFlushWindow(flushWindow);
 		if (!vnsComm.connectToServer(port, server))
 		{ System.exit(1); }
 		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
@@ -97,11 +187,22 @@ public class Main
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
 		}
 
+		// Handle packets on worker threads, while this thread reads them
+		Pipeline pipeline = null;
+		if (workers > 0)
+		{
+			pipeline = new Pipeline(dev, workers, Pipeline.DEFAULT_QUEUE_SIZE);
+			pipeline.start();
+			vnsComm.setPipeline(pipeline);
+		}
+
 		// Read messages from the server until the server closes the connection
 		System.out.println("<-- Ready to process packets -->");
 		while (vnsComm.readFromServer());
 		
 		// Shutdown the router
+		if (pipeline != null)
+		{ pipeline.close(); }
 		dev.destroy();
 	}
 	
@@ -110,6 +211,30 @@ public class Main
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-d]  use DIR-24-8 forwarding table for route lookups");
+		System.out.println("     [-z]  decode packet payloads on first access");
+		System.out.println("     [-W workers]  handle packets on this many threads");
+		System.out.println("     [-b usecs]  longest time replies may wait to be sent");
+		System.out.println(String.format(
+				"           with replies to later packets (default %d)",
+				VNSComm.DEFAULT_FLUSH_WINDOW));
+		System.out.println("     [-I rate,burst[,type_rate,type_burst]]  ICMP errors");
+		System.out.println(String.format(
+				"           per second for each source (default %d,%d) and type",
+				IcmpRateLimiter.DEFAULT_SOURCE_RATE,
+				IcmpRateLimiter.DEFAULT_SOURCE_BURST));
+		System.out.println(String.format(
+				"           (default %d,%d); a rate of 0 means no limit",
+				IcmpRateLimiter.DEFAULT_TYPE_RATE,
+				IcmpRateLimiter.DEFAULT_TYPE_BURST));
+		System.out.println("     [-L level]  log messages at this level and above:");
+		System.out.println("           trace, debug, info (default), warn, error, off");
+		System.out.println("     [-f filter]  only log packets matching the filter,");
+		System.out.println("           e.g. \"rip or (in and src net 10.0.1.0/24)\"");
+		System.out.println("     [-A]  write the log file from a background thread");
+		System.out.println("     [-N]  log timestamps in nanoseconds (implies -A)");
+		System.out.println("     [-R megabytes] [-T seconds]  start a new log file");
+		System.out.println("           after this size or age (implies -A)");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
 	}
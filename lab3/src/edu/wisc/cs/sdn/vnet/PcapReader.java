@@ -0,0 +1,178 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads Ethernet frames from a PCAP file, such as one written by
+ * {@link DumpFile}. Files in either byte order with microsecond or
+ * nanosecond timestamps are accepted.
+ */
+public class PcapReader
+{
+	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
+	private static final int TCPDUMP_MAGIC_NSEC = 0xa1b23c4d;
+	private static final int LINKTYPE_ETHERNET = 1;
+
+	private DataInputStream inStream;
+
+	/** True if the file was written in little-endian byte order */
+	private boolean swapped;
+
+	/** True if the file's timestamps are in nanoseconds */
+	private boolean nanos;
+
+	private int snapLen;
+	private int linkType;
+
+	/** Timestamp of the last frame read, in nanoseconds since the epoch */
+	private long timestamp;
+
+	/** Length of the last frame read when it was on the wire */
+	private int origLength;
+
+	private PcapReader(DataInputStream inStream)
+	{ this.inStream = inStream; }
+
+	/**
+	 * Open a PCAP file and read its header.
+	 * @param filename name of the file
+	 * @return a reader positioned at the first frame; null if the file
+	 *         cannot be opened or is not an Ethernet PCAP file
+	 */
+	public static PcapReader open(String filename)
+	{
+		PcapReader reader;
+		try
+		{
+			reader = new PcapReader(new DataInputStream(
+					new BufferedInputStream(new FileInputStream(filename))));
+		}
+		catch (IOException e)
+		{
+			System.err.println("Cannot open " + filename);
+			return null;
+		}
+
+		if (!reader.readHeader())
+		{
+			reader.close();
+			return null;
+		}
+		return reader;
+	}
+
+	private boolean readHeader()
+	{
+		try
+		{
+			int magic = this.inStream.readInt();
+			if (TCPDUMP_MAGIC == magic || TCPDUMP_MAGIC_NSEC == magic)
+			{ this.swapped = false; }
+			else if (TCPDUMP_MAGIC == Integer.reverseBytes(magic)
+					|| TCPDUMP_MAGIC_NSEC == Integer.reverseBytes(magic))
+			{
+				this.swapped = true;
+				magic = Integer.reverseBytes(magic);
+			}
+			else
+			{
+				System.err.println(String.format(
+						"Not a PCAP file, magic 0x%08x", magic));
+				return false;
+			}
+			this.nanos = (TCPDUMP_MAGIC_NSEC == magic);
+
+			this.inStream.readShort(); // version major
+			this.inStream.readShort(); // version minor
+			this.inStream.readInt();   // this zone
+			this.inStream.readInt();   // sig figs
+			this.snapLen = this.readInt();
+			this.linkType = this.readInt();
+			if (this.linkType != LINKTYPE_ETHERNET)
+			{
+				System.err.println(String.format(
+						"Unsupported PCAP link type %d", this.linkType));
+				return false;
+			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Cannot read PCAP header: " + e.toString());
+			return false;
+		}
+	}
+
+	private int readInt() throws IOException
+	{
+		int value = this.inStream.readInt();
+		return (this.swapped ? Integer.reverseBytes(value) : value);
+	}
+
+	/**
+	 * Read the next frame in the file.
+	 * @return the captured bytes of the frame; null at the end of the file
+	 *         or if the file is truncated or corrupt
+	 */
+	public byte[] next()
+	{
+		try
+		{
+			int sec;
+			try
+			{ sec = this.readInt(); }
+			catch (EOFException e)
+			{ return null; }
+			int frac = this.readInt();
+			int capLength = this.readInt();
+			this.origLength = this.readInt();
+			if (capLength < 0 || capLength > Math.max(this.snapLen, 65535))
+			{
+				System.err.println(String.format(
+						"Invalid PCAP record length %d", capLength));
+				return null;
+			}
+
+			this.timestamp = (sec & 0xffffffffL) * 1000000000L
+					+ (this.nanos ? frac : frac * 1000L);
+
+			byte[] frame = new byte[capLength];
+			this.inStream.readFully(frame);
+			return frame;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Truncated PCAP file: " + e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * @return timestamp of the last frame read, in nanoseconds since the epoch
+	 */
+	public long getTimestamp()
+	{ return this.timestamp; }
+
+	/**
+	 * @return length of the last frame read when it was on the wire
+	 */
+	public int getOrigLength()
+	{ return this.origLength; }
+
+	/**
+	 * @return true if the file's timestamps have nanosecond resolution
+	 */
+	public boolean isNanos()
+	{ return this.nanos; }
+
+	public void close()
+	{
+		try
+		{ this.inStream.close(); }
+		catch (IOException e) { }
+	}
+}
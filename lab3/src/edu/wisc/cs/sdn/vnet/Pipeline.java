@@ -0,0 +1,281 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.IPv4View;
+
+/**
+ * Hands received frames to a pool of worker threads, so a device can handle
+ * frames on several cores while a single thread reads from the server. Each
+ * worker has its own bounded queue, filled by one thread and emptied by the
+ * worker, so neither side ever takes a lock. Frames are assigned to a worker
+ * by a hash of their flow, so frames in the same flow are handled in the
+ * order they were received.
+ * <p>
+ * Frames are copied into buffers preallocated for each queue slot, and the
+ * thread submitting frames waits if a worker's queue is full. Devices whose
+ * frames are handled by a pipeline must be safe to call from several
+ * threads at once.
+ */
+public class Pipeline
+{
+	private static final Logger log = Logger.getLogger(Pipeline.class);
+
+	/** Default number of frames each worker's queue can hold */
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	/** Size of the buffer preallocated for each queue slot; larger frames
+	 *  get a larger buffer when they arrive */
+	private static final int SLOT_SIZE = 2048;
+
+	/** How long the submitting thread waits before checking a full queue
+	 *  again */
+	private static final long FULL_PARK_NANOS = 10000;
+
+	/** Device that handles the frames */
+	private Device device;
+
+	private Worker[] workers;
+
+	private volatile boolean closed;
+
+	/** Views used by the submitting thread to find a frame's flow */
+	private EthernetView etherView = new EthernetView();
+	private IPv4View ipView = new IPv4View();
+
+	/**
+	 * Create a pipeline; its workers are not started until
+	 * {@link #start()} is called.
+	 * @param device device that handles the frames
+	 * @param workerCount number of worker threads
+	 * @param queueSize number of frames each worker's queue can hold;
+	 *        rounded up to a power of two
+	 */
+	public Pipeline(Device device, int workerCount, int queueSize)
+	{
+		this.device = device;
+		int size = Integer.highestOneBit(Math.max(queueSize, 2) - 1) << 1;
+		this.workers = new Worker[workerCount];
+		for (int i = 0; i < workerCount; i++)
+		{ this.workers[i] = new Worker(i, size); }
+	}
+
+	/**
+	 * Start the worker threads.
+	 */
+	public void start()
+	{
+		for (Worker worker : this.workers)
+		{ worker.thread.start(); }
+	}
+
+	/**
+	 * @return number of worker threads
+	 */
+	public int getWorkerCount()
+	{ return this.workers.length; }
+
+	/**
+	 * @return IDs of the worker threads
+	 */
+	public long[] getThreadIds()
+	{
+		long[] ids = new long[this.workers.length];
+		for (int i = 0; i < ids.length; i++)
+		{ ids[i] = this.workers[i].thread.getId(); }
+		return ids;
+	}
+
+	/**
+	 * Queue a frame to be handled by the worker responsible for its flow.
+	 * The frame is copied, so the buffer can be reused as soon as this
+	 * returns. Must only be called by one thread.
+	 * @param buf buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was queued, false if the pipeline is closed
+	 */
+	public boolean submit(ByteBuffer buf, int offset, int length, Iface inIface)
+	{
+		int hash = this.flowHash(buf, offset, length);
+		Worker worker = this.workers[(hash & 0x7fffffff) % this.workers.length];
+
+		// Wait for the worker to make room
+		long pos = worker.tail;
+		while (pos - worker.head > worker.mask)
+		{
+			if (this.closed)
+			{ return false; }
+			LockSupport.unpark(worker.thread);
+			LockSupport.parkNanos(FULL_PARK_NANOS);
+		}
+
+		int slot = (int)(pos & worker.mask);
+		ByteBuffer frame = worker.frames[slot];
+		if (length > frame.capacity())
+		{
+			frame = ByteBuffer.allocate(length);
+			worker.frames[slot] = frame;
+		}
+		buf.get(offset, frame.array(), 0, length);
+		worker.lengths[slot] = length;
+		worker.ifaces[slot] = inIface;
+		worker.tail = pos + 1;
+
+		if (worker.waiting)
+		{ LockSupport.unpark(worker.thread); }
+		return true;
+	}
+
+	/**
+	 * Wait until every frame submitted so far has been handled.
+	 */
+	public void awaitIdle()
+	{
+		for (Worker worker : this.workers)
+		{
+			while (worker.head != worker.tail)
+			{ LockSupport.parkNanos(FULL_PARK_NANOS); }
+		}
+	}
+
+	/**
+	 * Stop the workers once they have handled every frame already queued.
+	 */
+	public void close()
+	{
+		this.closed = true;
+		for (Worker worker : this.workers)
+		{ LockSupport.unpark(worker.thread); }
+		for (Worker worker : this.workers)
+		{
+			try
+			{ worker.thread.join(); }
+			catch (InterruptedException e)
+			{ Thread.currentThread().interrupt(); }
+		}
+	}
+
+	/**
+	 * Hash the flow a frame belongs to: the addresses, protocol and ports
+	 * of an IPv4 packet, otherwise the MAC addresses and EtherType. Ports
+	 * are only in a packet's first fragment, so fragments are hashed
+	 * without them to keep every fragment of a packet in the same flow.
+	 */
+	private int flowHash(ByteBuffer buf, int offset, int length)
+	{
+		EthernetView ether = this.etherView.wrap(buf, offset, length);
+		if (!ether.isValid())
+		{ return 0; }
+
+		int h;
+		IPv4View ip = ether.getIPv4(this.ipView);
+		if (ether.getEtherType() == Ethernet.TYPE_IPv4 && ip.isValid())
+		{
+			h = ip.getSourceAddress() * 31 + ip.getDestinationAddress();
+			h = h * 31 + ip.getProtocol();
+			boolean fragment = ((ip.getFlags() & 0x1) != 0
+					|| ip.isLaterFragment());
+			if ((ip.getProtocol() == IPv4.PROTOCOL_TCP
+						|| ip.getProtocol() == IPv4.PROTOCOL_UDP)
+					&& !fragment && ip.getPayloadLength() >= 4)
+			{ h = h * 31 + buf.getInt(ip.getPayloadOffset()); }
+		}
+		else
+		{
+			long macs = ether.getSourceMAC() * 31 + ether.getDestinationMAC();
+			h = (int)(macs ^ (macs >>> 32)) * 31 + ether.getEtherType();
+		}
+
+		h *= 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * A worker thread and the queue of frames it handles.
+	 */
+	private class Worker implements Runnable
+	{
+		private Thread thread;
+
+		/** Buffer, length and receiving interface of the frame in each slot */
+		private ByteBuffer[] frames;
+		private int[] lengths;
+		private Iface[] ifaces;
+
+		/** Mask applied to a position to select a slot */
+		private int mask;
+
+		/** Total frames ever taken from the queue by the worker */
+		private volatile long head;
+
+		/** Total frames ever added to the queue */
+		private volatile long tail;
+
+		/** True while the worker is, or is about to be, parked */
+		private volatile boolean waiting;
+
+		/** View reused for every frame the worker handles */
+		private EthernetView frameView = new EthernetView();
+
+		Worker(int index, int size)
+		{
+			this.frames = new ByteBuffer[size];
+			for (int i = 0; i < size; i++)
+			{ this.frames[i] = ByteBuffer.allocate(SLOT_SIZE); }
+			this.lengths = new int[size];
+			this.ifaces = new Iface[size];
+			this.mask = size - 1;
+
+			this.thread = new Thread(this, "worker-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				long pos = this.head;
+				long end = this.tail;
+				if (pos == end)
+				{
+					if (closed)
+					{ break; }
+
+					// Recheck after announcing the wait, so a frame added
+					// in between is not missed
+					this.waiting = true;
+					if (this.head == this.tail && !closed)
+					{ LockSupport.park(this); }
+					this.waiting = false;
+					continue;
+				}
+
+				// Handle every frame already queued, and send the replies to
+				// them together
+				device.beginBatch();
+				for (; pos < end; pos++)
+				{
+					int slot = (int)(pos & this.mask);
+					try
+					{
+						device.receiveFrame(this.frameView.wrap(
+								this.frames[slot], 0, this.lengths[slot]),
+								this.ifaces[slot]);
+					}
+					catch (RuntimeException e)
+					{ log.error(() -> "Error handling frame: " + e); }
+					this.ifaces[slot] = null;
+					this.head = pos + 1;
+				}
+				device.endBatch();
+			}
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs tasks after a delay, on a single thread shared by everything a
+ * device needs to time out. Timers are kept in a hierarchical timing wheel:
+ * each level is a ring of slots, and each slot of one level covers a whole
+ * rotation of the level below. A timer sits in the lowest level whose
+ * current rotation includes its deadline, and moves down a level each time
+ * the wheel reaches the slot it is in. Scheduling and cancelling take
+ * constant time, and each tick only touches the timers that expire or move
+ * down, however many timers are waiting.
+ * <p>
+ * Tasks must be short, since they delay every other timer. Tasks for
+ * entries that are refreshed often should not reschedule on every refresh;
+ * instead, when the timer fires, the task checks when the entry was last
+ * refreshed and schedules itself again for the remaining time.
+ */
+public class TimerWheel
+{
+	private static final Logger log = Logger.getLogger(TimerWheel.class);
+
+	/** Default length of a tick, in milliseconds */
+	public static final long DEFAULT_TICK = 10;
+
+	/** Bits of the tick count covered by each level */
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int LEVELS = 4;
+
+	/** Longest delay, in ticks, that can be scheduled */
+	private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+	/**
+	 * A scheduled task, which can be cancelled until it runs.
+	 */
+	public static class Timeout
+	{
+		private Runnable task;
+
+		/** Tick at which the task runs */
+		private long deadline;
+
+		/** Level and slot holding the timer; -1 once it has run or been
+		 *  cancelled */
+		private int level = -1;
+		private int slot;
+
+		/** Neighbours in the slot's list */
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+		}
+	}
+
+	/** Length of a tick, in nanoseconds */
+	private long tickNanos;
+
+	/** Time at which tick 0 started, from System.nanoTime() */
+	private long startNanos;
+
+	/** Last tick that has been processed */
+	private long currentTick;
+
+	/** First timer in each slot of each level */
+	private Timeout[][] slots;
+
+	/** Number of timers waiting to run */
+	private int size;
+
+	private boolean closed;
+
+	private Thread thread;
+
+	/**
+	 * Create a timer wheel and start its thread.
+	 * @param name name of the timer thread
+	 * @param tickMillis length of a tick, in milliseconds; timers run up to
+	 *        a tick late
+	 */
+	public TimerWheel(String name, long tickMillis)
+	{
+		this.tickNanos = tickMillis * 1000000;
+		this.startNanos = System.nanoTime();
+		this.slots = new Timeout[LEVELS][SLOTS];
+
+		this.thread = new Thread(this::run, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Schedule a task to run once after a delay.
+	 * @param task the task
+	 * @param delayMillis delay, in milliseconds
+	 * @return the timer, which can be used to cancel the task
+	 */
+	public synchronized Timeout schedule(Runnable task, long delayMillis)
+	{
+		// The wheel is not turned while it is empty, so catch it up
+		long now = System.nanoTime() - this.startNanos;
+		if (0 == this.size)
+		{ this.currentTick = Math.max(this.currentTick, now / this.tickNanos); }
+
+		// Run at the first tick that starts after the delay has passed; the
+		// wheel may be a tick behind the clock
+		long deadline = (now + delayMillis * 1000000 + this.tickNanos - 1)
+				/ this.tickNanos;
+		deadline = Math.max(this.currentTick + 1,
+				Math.min(deadline, this.currentTick + MAX_TICKS));
+		Timeout timeout = new Timeout(task, deadline);
+		this.insert(timeout);
+		this.size++;
+
+		// The thread sleeps indefinitely while there are no timers
+		if (1 == this.size)
+		{ this.notifyAll(); }
+		return timeout;
+	}
+
+	/**
+	 * Cancel a task, if it has not already run.
+	 * @param timeout the timer returned when the task was scheduled
+	 * @return true if the task was cancelled, false if it has already run
+	 *         or been cancelled
+	 */
+	public synchronized boolean cancel(Timeout timeout)
+	{
+		if (timeout.level < 0)
+		{ return false; }
+		this.unlink(timeout);
+		this.size--;
+		return true;
+	}
+
+	/**
+	 * @return number of tasks waiting to run
+	 */
+	public synchronized int size()
+	{ return this.size; }
+
+	/**
+	 * Stop the timer thread; tasks that have not run are discarded.
+	 */
+	public void close()
+	{
+		synchronized (this)
+		{
+			this.closed = true;
+			this.notifyAll();
+		}
+		try
+		{ this.thread.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	/**
+	 * Add a timer to the lowest level whose current rotation includes its
+	 * deadline. Must be called while synchronized.
+	 */
+	private void insert(Timeout timeout)
+	{
+		int level = 0;
+		while (level < LEVELS - 1 && (timeout.deadline >>> (SLOT_BITS * (level + 1)))
+				!= (this.currentTick >>> (SLOT_BITS * (level + 1))))
+		{ level++; }
+		int slot = (int)(timeout.deadline >>> (SLOT_BITS * level)) & (SLOTS - 1);
+
+		timeout.level = level;
+		timeout.slot = slot;
+		timeout.prev = null;
+		timeout.next = this.slots[level][slot];
+		if (timeout.next != null)
+		{ timeout.next.prev = timeout; }
+		this.slots[level][slot] = timeout;
+	}
+
+	/**
+	 * Remove a timer from its slot. Must be called while synchronized.
+	 */
+	private void unlink(Timeout timeout)
+	{
+		if (timeout.prev != null)
+		{ timeout.prev.next = timeout.next; }
+		else
+		{ this.slots[timeout.level][timeout.slot] = timeout.next; }
+		if (timeout.next != null)
+		{ timeout.next.prev = timeout.prev; }
+		timeout.prev = timeout.next = null;
+		timeout.level = -1;
+	}
+
+	/**
+	 * Advance the wheel by one tick, moving down the timers in any slot the
+	 * wheel has reached, and collect the timers that expire. Must be called
+	 * while synchronized.
+	 * @param expired list to which the expired timers' tasks are added
+	 */
+	private void tick(List<Runnable> expired)
+	{
+		this.currentTick++;
+
+		// Move timers down from the highest level that has reached a new
+		// slot, so they can move down again at the levels below
+		int top = 0;
+		while (top < LEVELS - 1 && 0 == (this.currentTick
+				& ((1L << (SLOT_BITS * (top + 1))) - 1)))
+		{ top++; }
+		for (int level = top; level > 0; level--)
+		{
+			int slot = (int)(this.currentTick >>> (SLOT_BITS * level))
+					& (SLOTS - 1);
+			Timeout timeout = this.slots[level][slot];
+			this.slots[level][slot] = null;
+			while (timeout != null)
+			{
+				Timeout next = timeout.next;
+				this.insert(timeout);
+				timeout = next;
+			}
+		}
+
+		int slot = (int)this.currentTick & (SLOTS - 1);
+		Timeout timeout = this.slots[0][slot];
+		while (timeout != null)
+		{
+			Timeout next = timeout.next;
+			if (timeout.deadline <= this.currentTick)
+			{
+				this.unlink(timeout);
+				this.size--;
+				expired.add(timeout.task);
+			}
+			timeout = next;
+		}
+	}
+
+	/**
+	 * Body of the timer thread: sleep until the next tick, process every
+	 * tick that has passed, then run the tasks that expired.
+	 */
+	private void run()
+	{
+		List<Runnable> expired = new ArrayList<Runnable>();
+		while (true)
+		{
+			synchronized (this)
+			{
+				try
+				{
+					while (!this.closed)
+					{
+						long now = System.nanoTime() - this.startNanos;
+						long nextTick = (this.currentTick + 1) * this.tickNanos;
+						if (this.size > 0 && now >= nextTick)
+						{ break; }
+						if (0 == this.size)
+						{ this.wait(); }
+						else
+						{
+							long millis = (nextTick - now) / 1000000;
+							this.wait(millis, (int)((nextTick - now) % 1000000));
+						}
+					}
+				}
+				catch (InterruptedException e)
+				{ return; }
+				if (this.closed)
+				{ return; }
+
+				long now = System.nanoTime() - this.startNanos;
+				while ((this.currentTick + 1) * this.tickNanos <= now)
+				{ this.tick(expired); }
+			}
+
+			for (Runnable task : expired)
+			{
+				try
+				{ task.run(); }
+				catch (RuntimeException e)
+				{ log.error(() -> "Error running timer: " + e); }
+			}
+			expired.clear();
+		}
+	}
+}
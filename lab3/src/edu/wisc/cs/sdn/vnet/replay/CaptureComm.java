@@ -0,0 +1,77 @@
+package edu.wisc.cs.sdn.vnet.replay;
+
+import java.nio.ByteBuffer;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+
+/**
+ * Stands in for the Virtual Network Simulator connection of a device that
+ * is being driven by a replay. Packets the device sends are serialized as
+ * they would be for the server, counted, and logged to the device's dump
+ * file, but are not written anywhere else.
+ */
+public class CaptureComm extends VNSComm
+{
+	/** Buffer reused to serialize every packet sent */
+	private ByteBuffer sendBuffer = ByteBuffer.allocate(1514);
+
+	private long packetsSent;
+	private long bytesSent;
+
+	public CaptureComm(Device device)
+	{ super(device); }
+
+	@Override
+	public synchronized boolean sendPacket(Ethernet etherPacket,
+			String ifaceName)
+	{
+		int length = etherPacket.getSerializedLength();
+		if (length > this.sendBuffer.capacity())
+		{ this.sendBuffer = ByteBuffer.allocate(length); }
+		this.sendBuffer.clear();
+		etherPacket.serializeTo(this.sendBuffer);
+		return this.capture(this.sendBuffer, 0, length, ifaceName);
+	}
+
+	@Override
+	public synchronized boolean sendFrame(ByteBuffer frame, int offset,
+			int length, String ifaceName)
+	{ return this.capture(frame, offset, length, ifaceName); }
+
+	private boolean capture(ByteBuffer frame, int offset, int length,
+			String ifaceName)
+	{
+		this.packetsSent++;
+		this.bytesSent += length;
+		if (this.getDevice().getLogFile() != null)
+		{
+			this.getDevice().getLogFile().dump(frame, offset, length,
+					ifaceName, true);
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of packets the device has sent
+	 */
+	public synchronized long getPacketsSent()
+	{ return this.packetsSent; }
+
+	/**
+	 * @return number of bytes the device has sent
+	 */
+	public synchronized long getBytesSent()
+	{ return this.bytesSent; }
+
+	/**
+	 * Reset the sent packet and byte counts.
+	 */
+	public synchronized void reset()
+	{
+		this.packetsSent = 0;
+		this.bytesSent = 0;
+	}
+}
@@ -0,0 +1,570 @@
+package edu.wisc.cs.sdn.vnet.replay;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.floodlightcontroller.packet.ArpView;
+import net.floodlightcontroller.packet.BasePacket;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.AsyncDumpFile;
+import edu.wisc.cs.sdn.vnet.CaptureFilter;
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.DumpFile;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Logger;
+import edu.wisc.cs.sdn.vnet.PcapReader;
+import edu.wisc.cs.sdn.vnet.Pipeline;
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+
+/**
+ * Measures how fast a router or switch handles packets by replaying the
+ * frames in a PCAP file straight into the device, without a Virtual Network
+ * Simulator server. Frames are handed to the device the same way
+ * {@link edu.wisc.cs.sdn.vnet.vns.VNSComm} hands it frames read from the
+ * server, and packets the device sends are captured by a
+ * {@link CaptureComm}.
+ */
+public class Replay
+{
+	/** Fractions of packets at or below each reported latency */
+	private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	public static void main(String[] args)
+	{
+		String host = null;
+		String ifaceFile = null;
+		String pcapFile = null;
+		String routeTableFile = null;
+		String arpCacheFile = null;
+		String logfile = null;
+		String filter = null;
+		String inIfaceName = null;
+		int loops = 1;
+		int warmupLoops = 0;
+		boolean flatLookup = false;
+		boolean lazyDecoding = false;
+		boolean decodeAll = false;
+		boolean quiet = false;
+		boolean asyncLog = false;
+		int workers = 0;
+		String icmpLimit = null;
+		Logger.Level logLevel = Logger.Level.INFO;
+		Device dev = null;
+
+		// Parse arguments
+		for(int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				return;
+			}
+			else if (arg.equals("-v"))
+			{ host = args[++i]; }
+			else if (arg.equals("-c"))
+			{ ifaceFile = args[++i]; }
+			else if (arg.equals("-f"))
+			{ pcapFile = args[++i]; }
+			else if (arg.equals("-i"))
+			{ inIfaceName = args[++i]; }
+			else if (arg.equals("-n"))
+			{ loops = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-w"))
+			{ warmupLoops = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-l"))
+			{ logfile = args[++i]; }
+			else if (arg.equals("-F"))
+			{ filter = args[++i]; }
+			else if (arg.equals("-r"))
+			{ routeTableFile = args[++i]; }
+			else if (arg.equals("-a"))
+			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-d"))
+			{ flatLookup = true; }
+			else if (arg.equals("-z"))
+			{ lazyDecoding = true; }
+			else if (arg.equals("-o"))
+			{ decodeAll = true; }
+			else if (arg.equals("-q"))
+			{ quiet = true; }
+			else if (arg.equals("-L"))
+			{
+				try
+				{ logLevel = Logger.parseLevel(args[++i]); }
+				catch (IllegalArgumentException e)
+				{
+					usage();
+					return;
+				}
+			}
+			else if (arg.equals("-A"))
+			{ asyncLog = true; }
+			else if (arg.equals("-W"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-I"))
+			{ icmpLimit = args[++i]; }
+		}
+
+		if (null == host || null == ifaceFile || null == pcapFile
+				|| (workers > 0 && decodeAll))
+		{
+			usage();
+			return;
+		}
+
+		Logger.setLevel(logLevel);
+		BasePacket.setLazyDecoding(lazyDecoding);
+
+		// Read every frame up front so file I/O is not measured
+		List<byte[]> frames = readFrames(pcapFile);
+		if (null == frames)
+		{ return; }
+		if (frames.isEmpty())
+		{
+			System.err.println("No frames in " + pcapFile);
+			return;
+		}
+
+		// Open PCAP dump file for logging packets sent/received by the device
+		DumpFile dump = null;
+		if (logfile != null)
+		{
+			if (asyncLog)
+			{
+				dump = AsyncDumpFile.open(logfile, AsyncDumpFile.DEFAULT_RING_SIZE,
+						false, 0, 0);
+			}
+			else
+			{ dump = DumpFile.open(logfile); }
+			if (null == dump)
+			{
+				System.err.println("Error opening up dump file "+logfile);
+				return;
+			}
+			if (filter != null)
+			{
+				try
+				{ dump.setFilter(CaptureFilter.compile(filter)); }
+				catch (IllegalArgumentException e)
+				{
+					System.err.println(e.getMessage());
+					return;
+				}
+			}
+		}
+
+		if (host.startsWith("s"))
+		{ dev = new Switch(host, dump); }
+		else if (host.startsWith("r"))
+		{
+			dev = new Router(host, dump);
+			if (flatLookup)
+			{ ((Router)dev).getRouteTable().setFlatLookup(true); }
+			if (icmpLimit != null)
+			{
+				try
+				{ ((Router)dev).getIcmpLimiter().configure(icmpLimit); }
+				catch (IllegalArgumentException e)
+				{
+					usage();
+					return;
+				}
+			}
+		}
+		else
+		{
+			System.err.println("Device name must start with 's' or 'r'");
+			return;
+		}
+
+		CaptureComm comm = new CaptureComm(dev);
+		if (!loadInterfaces(dev, ifaceFile))
+		{ System.exit(1); }
+
+		if (dev instanceof Router)
+		{
+			if (routeTableFile != null)
+			{ ((Router)dev).loadRouteTable(routeTableFile); }
+			else
+			{ ((Router)dev).initRIP(); }
+			if (arpCacheFile != null)
+			{ ((Router)dev).loadArpCache(arpCacheFile); }
+		}
+
+		// Decide which interface each frame arrives on
+		Iface fixedIface = null;
+		if (inIfaceName != null)
+		{
+			fixedIface = dev.getInterface(inIfaceName);
+			if (null == fixedIface)
+			{
+				System.err.println("No interface named " + inIfaceName);
+				System.exit(1);
+			}
+		}
+		Iface[] inIfaces = new Iface[frames.size()];
+		for (int i = 0; i < inIfaces.length; i++)
+		{
+			inIfaces[i] = (fixedIface != null ? fixedIface
+					: findInterface(dev, frames.get(i)));
+		}
+
+		PrintStream stdout = System.out;
+		if (quiet)
+		{ System.setOut(new PrintStream(OutputStream.nullOutputStream())); }
+
+		// Hand frames to worker threads, as the server connection would
+		Pipeline pipeline = null;
+		long[] threadIds = { Thread.currentThread().getId() };
+		if (workers > 0)
+		{
+			pipeline = new Pipeline(dev, workers, Pipeline.DEFAULT_QUEUE_SIZE);
+			pipeline.start();
+			threadIds = Arrays.copyOf(pipeline.getThreadIds(), workers + 1);
+			threadIds[workers] = Thread.currentThread().getId();
+		}
+
+		Replay replay = new Replay(dev, frames, inIfaces, !decodeAll, pipeline);
+		for (int i = 0; i < warmupLoops; i++)
+		{ replay.run(); }
+		comm.reset();
+
+		long[] latencies = new long[frames.size() * loops];
+		com.sun.management.ThreadMXBean threadBean = getThreadBean();
+		long allocatedBefore = (threadBean != null
+				? sum(threadBean.getThreadAllocatedBytes(threadIds)) : -1);
+		long start = System.nanoTime();
+		for (int i = 0; i < loops; i++)
+		{ replay.run(latencies, i * frames.size()); }
+		long elapsed = System.nanoTime() - start;
+		long allocated = (threadBean != null
+				? sum(threadBean.getThreadAllocatedBytes(threadIds))
+						- allocatedBefore : -1);
+
+		System.setOut(stdout);
+		report(latencies, elapsed, allocated, comm);
+
+		dev.destroy();
+		System.exit(0);
+	}
+
+	/** Device the frames are replayed into */
+	private Device device;
+
+	private List<byte[]> frames;
+
+	/** Interface on which each frame arrives */
+	private Iface[] inIfaces;
+
+	/** True if frames are offered to the device before they are decoded */
+	private boolean handleFrames;
+
+	/** Worker threads frames are handed to; null if frames are handled by
+	 *  the replaying thread */
+	private Pipeline pipeline;
+
+	private EthernetView frameView = new EthernetView();
+
+	public Replay(Device device, List<byte[]> frames, Iface[] inIfaces,
+			boolean handleFrames, Pipeline pipeline)
+	{
+		this.device = device;
+		this.frames = frames;
+		this.inIfaces = inIfaces;
+		this.handleFrames = handleFrames;
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * Replay every frame once.
+	 */
+	public void run()
+	{
+		for (int i = 0; i < this.frames.size(); i++)
+		{ this.handle(i); }
+		if (this.pipeline != null)
+		{ this.pipeline.awaitIdle(); }
+	}
+
+	/**
+	 * Replay every frame once, recording how long each took to handle, or
+	 * to queue if frames are handled by worker threads.
+	 * @param latencies array in which to record latencies, in nanoseconds
+	 * @param offset index in the array at which to record the first frame's
+	 */
+	public void run(long[] latencies, int offset)
+	{
+		for (int i = 0; i < this.frames.size(); i++)
+		{
+			long start = System.nanoTime();
+			this.handle(i);
+			latencies[offset + i] = System.nanoTime() - start;
+		}
+		if (this.pipeline != null)
+		{ this.pipeline.awaitIdle(); }
+	}
+
+	/**
+	 * Hand a frame to the device as if it had just been read from the
+	 * server.
+	 * @param i index of the frame
+	 */
+	private void handle(int i)
+	{
+		// Worker threads get their own copy of the frame from the pipeline
+		if (this.pipeline != null)
+		{
+			byte[] frame = this.frames.get(i);
+			ByteBuffer buf = ByteBuffer.wrap(frame);
+			if (this.device.getLogFile() != null)
+			{
+				this.device.getLogFile().dump(buf, 0, frame.length,
+						this.inIfaces[i].getName(), false);
+			}
+			this.pipeline.submit(buf, 0, frame.length, this.inIfaces[i]);
+			return;
+		}
+
+		// Devices may modify a frame in place or hold on to it, so each
+		// replay gets its own copy, just like each frame read from the server
+		byte[] frame = this.frames.get(i);
+		byte[] data = Arrays.copyOf(frame, frame.length);
+		Iface inIface = this.inIfaces[i];
+
+		if (this.device.getLogFile() != null)
+		{
+			this.device.getLogFile().dump(ByteBuffer.wrap(data), 0, data.length,
+					inIface.getName(), false);
+		}
+
+		if (this.handleFrames && data.length >= 14
+				&& this.device.handleFrame(this.frameView.wrap(
+						ByteBuffer.wrap(data), 0, data.length), inIface))
+		{ return; }
+
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.deserialize(data, 0, data.length);
+		this.device.handlePacket(etherPacket, inIface);
+	}
+
+	/**
+	 * Read every frame in a PCAP file.
+	 * @return the frames; null if the file could not be read
+	 */
+	private static List<byte[]> readFrames(String filename)
+	{
+		PcapReader reader = PcapReader.open(filename);
+		if (null == reader)
+		{ return null; }
+
+		List<byte[]> frames = new ArrayList<byte[]>();
+		byte[] frame;
+		while ((frame = reader.next()) != null)
+		{
+			if (frame.length >= 14)
+			{ frames.add(frame); }
+		}
+		reader.close();
+		return frames;
+	}
+
+	/**
+	 * Add interfaces to a device from a file. Each line names an interface
+	 * and gives its IP address, subnet mask and MAC address, e.g.
+	 * <pre>eth0 10.0.1.1 255.255.255.0 00:00:00:00:01:01</pre>
+	 * @return true if the interfaces were successfully loaded, otherwise false
+	 */
+	private static boolean loadInterfaces(Device dev, String filename)
+	{
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new FileReader(filename));
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+				{ continue; }
+
+				String[] fields = line.split("\\s+");
+				if (fields.length != 4)
+				{
+					System.err.println("Invalid entry in interface file: "
+							+ line);
+					return false;
+				}
+
+				Iface iface = dev.addInterface(fields[0]);
+				iface.setIpAddress(IPv4.toIPv4Address(fields[1]));
+				iface.setSubnetMask(IPv4.toIPv4Address(fields[2]));
+				iface.setMacAddress(MACAddress.valueOf(fields[3]));
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("Invalid entry in interface file: "
+					+ e.getMessage());
+			return false;
+		}
+		finally
+		{
+			if (reader != null)
+			{ try { reader.close(); } catch (IOException f) {} }
+		}
+
+		if (dev.getInterfaces().isEmpty())
+		{
+			System.err.println("No interfaces in " + filename);
+			return false;
+		}
+		dev.interfacesChanged();
+
+		System.out.println("Device interfaces:");
+		for (Iface iface : dev.getInterfaces().values())
+		{ System.out.println(iface.toString()); }
+		return true;
+	}
+
+	/**
+	 * Guess which interface a frame arrived on from the subnet its sender's
+	 * IP address belongs to.
+	 * @return the interface on the sender's subnet; the interface with the
+	 *         lowest name if the sender is on none of the device's subnets
+	 */
+	private static Iface findInterface(Device dev, byte[] frame)
+	{
+		EthernetView ether = new EthernetView().wrap(ByteBuffer.wrap(frame),
+				0, frame.length);
+		int srcIp = 0;
+		if (Ethernet.TYPE_IPv4 == ether.getEtherType()
+				&& ether.getPayloadLength() >= 20)
+		{
+			srcIp = ByteBuffer.wrap(frame).getInt(
+					ether.getPayloadOffset() + 12);
+		}
+		else if (Ethernet.TYPE_ARP == ether.getEtherType())
+		{
+			ArpView arp = ether.getArp(new ArpView());
+			if (arp.isValid())
+			{ srcIp = arp.getSenderProtocolAddress(); }
+		}
+
+		Iface first = null;
+		for (Iface iface : dev.getInterfaces().values())
+		{
+			if (srcIp != 0 && (srcIp & iface.getSubnetMask())
+					== (iface.getIpAddress() & iface.getSubnetMask()))
+			{ return iface; }
+			if (null == first || iface.getName().compareTo(first.getName()) < 0)
+			{ first = iface; }
+		}
+		return first;
+	}
+
+	/**
+	 * @return the JVM's thread bean, if it can report how much memory
+	 *         a thread has allocated; otherwise null
+	 */
+	private static com.sun.management.ThreadMXBean getThreadBean()
+	{
+		if (!(ManagementFactory.getThreadMXBean()
+				instanceof com.sun.management.ThreadMXBean))
+		{ return null; }
+		com.sun.management.ThreadMXBean threadBean =
+				(com.sun.management.ThreadMXBean)
+				ManagementFactory.getThreadMXBean();
+		if (!threadBean.isThreadAllocatedMemorySupported())
+		{ return null; }
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+		return threadBean;
+	}
+
+	private static long sum(long[] values)
+	{
+		long total = 0;
+		for (long value : values)
+		{ total += value; }
+		return total;
+	}
+
+	private static void report(long[] latencies, long elapsed, long allocated,
+			CaptureComm comm)
+	{
+		int count = latencies.length;
+		double seconds = elapsed / 1e9;
+		System.out.println(String.format("Replayed %d frames in %.3f s",
+				count, seconds));
+		System.out.println(String.format("  throughput  %.0f packets/s",
+				count / seconds));
+		System.out.println(String.format("  sent        %d packets, %d bytes",
+				comm.getPacketsSent(), comm.getBytesSent()));
+
+		Arrays.sort(latencies);
+		StringBuilder line = new StringBuilder("  latency    ");
+		for (double percentile : PERCENTILES)
+		{
+			int index = (int)Math.ceil(percentile * count) - 1;
+			line.append(String.format(" p%s=%.2fus",
+					formatPercentile(percentile),
+					latencies[Math.max(index, 0)] / 1e3));
+		}
+		line.append(String.format(" max=%.2fus", latencies[count - 1] / 1e3));
+		System.out.println(line.toString());
+
+		if (allocated < 0)
+		{ System.out.println("  allocation  not supported by this JVM"); }
+		else
+		{
+			System.out.println(String.format(
+					"  allocation  %.1f bytes/packet, %.1f MB/s",
+					(double)allocated / count, allocated / seconds / 1e6));
+		}
+	}
+
+	private static String formatPercentile(double percentile)
+	{
+		String s = Double.toString(percentile * 100);
+		return (s.endsWith(".0") ? s.substring(0, s.length() - 2) : s);
+	}
+
+	static void usage()
+	{
+		System.out.println("Virtual Network Replay");
+		System.out.println("Replay -v host -c interfaces -f pcap_file [-h]");
+		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-i iface]  interface every frame arrives on");
+		System.out.println("     [-n loops]  times to replay the file (default 1)");
+		System.out.println("     [-w loops]  unmeasured warm-up replays (default 0)");
+		System.out.println("     [-d]  use DIR-24-8 forwarding table for route lookups");
+		System.out.println("     [-z]  decode packet payloads on first access");
+		System.out.println("     [-o]  decode every frame, skipping the raw frame path");
+		System.out.println("     [-W workers]  handle frames on this many threads (not with -o);");
+		System.out.println("           latency is then the time to queue each frame");
+		System.out.println("     [-I rate,burst[,type_rate,type_burst]]  limit ICMP errors");
+		System.out.println("           per source and type; -I 0,0,0,0 for no limit");
+		System.out.println("     [-F filter]  only log packets matching the filter");
+		System.out.println("     [-L level]  device log level (default info)");
+		System.out.println("     [-A]  write the log file from a background thread");
+		System.out.println("     [-q]  discard the device's console output while replaying");
+	}
+}
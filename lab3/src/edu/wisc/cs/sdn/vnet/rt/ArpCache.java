@@ -4,37 +4,247 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Logger;
+import edu.wisc.cs.sdn.vnet.TimerWheel;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
 /**
  * A cache of MAC address to IP address mappings.
+ * 
+ * Learned mappings age like entries in a Linux neighbour table. A mapping
+ * is REACHABLE for {@link #REACHABLE_TIME} after it is confirmed. If it was
+ * used to forward packets in that time, the router then sends unicast
+ * requests to the known MAC address to confirm it (PROBE); otherwise it
+ * becomes STALE, and is probed as soon as it is used again. A mapping is
+ * only removed when every probe goes unanswered or it has been stale and
+ * unused for {@link #STALE_TIME}. Mappings stay usable until they are
+ * removed, so forwarding to a busy next hop never waits for ARP.
+ * 
+ * Lookups read an open-addressing table keyed on primitive ints without
+ * locking. Writers serialize on the cache and change one slot at a time
+ * with a volatile write, so a reader sees either the old or the new entry
+ * for a slot. The table is only copied when it grows.
  * @author Aaron Gember-Jacobson
  */
 public class ArpCache
-{		
-	/** Entries in the cache; maps an IP address to an entry */
-	private Map<Integer,ArpEntry> entries;
-	
+{
+	private static final Logger log = Logger.getLogger(ArpCache.class);
+
+	/** Time (in milliseconds) a mapping is reachable after it is confirmed */
+	public static final long REACHABLE_TIME = 30 * 1000;
+
+	/** Time (in milliseconds) a stale mapping is kept while it is unused */
+	public static final long STALE_TIME = 60 * 1000;
+
+	/** Time (in milliseconds) between checks of whether a stale mapping has
+	 *  been used */
+	private static final long DELAY_TIME = 5 * 1000;
+
+	/** Time (in milliseconds) between unicast requests */
+	private static final long PROBE_INTERVAL = 1000;
+
+	/** Number of unicast requests sent before a mapping is removed */
+	private static final int MAX_PROBES = 3;
+
+	/** Marks a slot whose entry was removed; lookups probe past it */
+	private static final ArpEntry REMOVED = new ArpEntry(null, 0);
+
+	/**
+	 * Sends the unicast requests that check whether a mapping is still right.
+	 */
+	public interface Prober
+	{
+		/**
+		 * @param ip IP address of the mapping
+		 * @param iface interface on which the mapping was learned
+		 * @param mac MAC address the request is sent to
+		 */
+		void probe(int ip, Iface iface, MACAddress mac);
+	}
+
+	/**
+	 * An open-addressing table of entries, keyed on IP address.
+	 */
+	private static class Table
+	{
+		/** Entry for each slot; null if the slot has never been used */
+		final AtomicReferenceArray<ArpEntry> slots;
+
+		/** Mask applied to a hash to select a slot */
+		final int mask;
+
+		/** Number of entries, and of removed slots, in the table */
+		int size;
+		int removed;
+
+		Table(int capacity)
+		{
+			this.slots = new AtomicReferenceArray<ArpEntry>(capacity);
+			this.mask = capacity - 1;
+		}
+
+		ArpEntry get(int ip)
+		{
+			for (int slot = hash(ip) & this.mask; ; slot = (slot + 1) & this.mask)
+			{
+				ArpEntry entry = this.slots.get(slot);
+				if (null == entry)
+				{ return null; }
+				if (entry != REMOVED && entry.getIp() == ip)
+				{ return entry; }
+			}
+		}
+
+		/**
+		 * @return slot holding the entry for an address, -1 if none
+		 */
+		int find(int ip)
+		{
+			for (int slot = hash(ip) & this.mask; ; slot = (slot + 1) & this.mask)
+			{
+				ArpEntry entry = this.slots.get(slot);
+				if (null == entry)
+				{ return -1; }
+				if (entry != REMOVED && entry.getIp() == ip)
+				{ return slot; }
+			}
+		}
+
+		/**
+		 * Add an entry for an address that is not in the table, reusing
+		 * the first removed slot on its probe sequence. There must be room.
+		 */
+		void add(ArpEntry entry)
+		{
+			int slot = hash(entry.getIp()) & this.mask;
+			ArpEntry current;
+			while ((current = this.slots.get(slot)) != null && current != REMOVED)
+			{ slot = (slot + 1) & this.mask; }
+			if (current == REMOVED)
+			{ this.removed--; }
+			this.slots.set(slot, entry);
+			this.size++;
+		}
+
+		/**
+		 * @return true if the table has room for another entry while
+		 *         keeping at least half its slots never used
+		 */
+		boolean hasRoom()
+		{ return (this.size + this.removed + 1) * 2 <= this.slots.length(); }
+
+		/**
+		 * @return a larger table holding the same entries, without the
+		 *         removed slots
+		 */
+		Table grow()
+		{
+			int capacity = this.slots.length();
+			while (capacity < (this.size + 1) * 4)
+			{ capacity *= 2; }
+			Table table = new Table(capacity);
+			for (int i = 0; i < this.slots.length(); i++)
+			{
+				ArpEntry entry = this.slots.get(i);
+				if (entry != null && entry != REMOVED)
+				{ table.add(entry); }
+			}
+			return table;
+		}
+
+		private static int hash(int ip)
+		{
+			int h = ip * 0x9e3779b9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	/** Current table of entries */
+	private volatile Table table;
+
+	/** Number of times a mapping has been added, changed or removed */
+	private AtomicLong version;
+
+	/** Timers that age the mappings */
+	private TimerWheel timers;
+
+	/** Sends the unicast requests for mappings being probed */
+	private Prober prober;
+
 	/**
 	 * Initializes an empty ARP cache for a router.
+	 * @param timers timers that age the mappings
+	 * @param prober sends the unicast requests for mappings being probed
+	 */
+	public ArpCache(TimerWheel timers, Prober prober)
+	{
+		this.table = new Table(16);
+		this.version = new AtomicLong();
+		this.timers = timers;
+		this.prober = prober;
+	}
+	
+	/**
+	 * @return version of the cache; the version changes whenever a mapping
+	 *         is added, changed or removed, but not when only its state
+	 *         changes
 	 */
-	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	public long getVersion()
+	{ return this.version.get(); }
 	
 	/**
-	 * Insert an entry in the ARP cache for a specific IP address, MAC address
-	 * pair.
+	 * Insert a permanent entry in the ARP cache for a specific IP address,
+	 * MAC address pair.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 */
+	public synchronized void insert(MACAddress mac, int ip)
+	{
+		ArpEntry old = this.table.get(ip);
+		if (old != null && old.timeout != null)
+		{ this.timers.cancel(old.timeout); }
+		this.put(new ArpEntry(mac, ip));
+	}
+
+	/**
+	 * Record a mapping learned from an ARP reply. A new or changed mapping
+	 * is added as reachable; an unchanged one is confirmed, which does not
+	 * change the version of the cache.
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
+	 * @param iface interface on which the reply was received
 	 */
-	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	public synchronized void update(MACAddress mac, int ip, Iface iface)
+	{
+		// Hosts probing for an address conflict send requests from 0.0.0.0
+		if (0 == ip)
+		{ return; }
+		ArpEntry old = this.table.get(ip);
+		if (old != null && old.getMac().equals(mac)
+				&& (old.getState() == ArpEntry.State.PERMANENT
+					|| old.getInterface() == iface))
+		{
+			// Its timer reschedules itself for the new reachable time
+			old.confirm();
+			return;
+		}
+		if (old != null && old.getState() == ArpEntry.State.PERMANENT)
+		{ return; }
+		if (old != null)
+		{ this.timers.cancel(old.timeout); }
+
+		ArpEntry entry = new ArpEntry(mac, ip, iface, ArpEntry.State.REACHABLE);
+		entry.timeout = this.timers.schedule(() -> this.age(entry),
+				REACHABLE_TIME);
+		this.put(entry);
+	}
 	
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
@@ -42,7 +252,121 @@ public class ArpCache
 	 * @return the IP->MAC mapping from the cache; null if none exists 
 	 */
 	public ArpEntry lookup(int ip)
-	{ return this.entries.get(ip); }
+	{ return this.table.get(ip); }
+
+	/**
+	 * Move a mapping on to its next state once its timer fires, sending a
+	 * unicast request if it needs to be confirmed.
+	 */
+	private void age(ArpEntry entry)
+	{
+		boolean probe = false;
+		synchronized (this)
+		{
+			// The mapping was replaced or removed while the timer fired
+			if (this.table.get(entry.getIp()) != entry)
+			{ return; }
+
+			long now = System.currentTimeMillis();
+			long delay;
+			switch (entry.getState())
+			{
+			case REACHABLE:
+				long remaining = entry.getTimeConfirmed() + REACHABLE_TIME - now;
+				if (remaining > 0)
+				{ delay = remaining; }
+				else if (entry.takeUsed())
+				{
+					entry.setState(ArpEntry.State.PROBE);
+					probe = true;
+					delay = PROBE_INTERVAL;
+				}
+				else
+				{
+					entry.setState(ArpEntry.State.STALE);
+					delay = DELAY_TIME;
+				}
+				break;
+			case STALE:
+				if (entry.takeUsed())
+				{
+					entry.setState(ArpEntry.State.PROBE);
+					probe = true;
+					delay = PROBE_INTERVAL;
+				}
+				else if (now - entry.getTimeConfirmed() 
+						>= REACHABLE_TIME + STALE_TIME)
+				{
+					this.remove(entry);
+					return;
+				}
+				else
+				{ delay = DELAY_TIME; }
+				break;
+			case PROBE:
+				if (entry.probes >= MAX_PROBES)
+				{
+					log.debug(() -> "No reply to ARP probes for "
+							+ IPv4.fromIPv4Address(entry.getIp()));
+					this.remove(entry);
+					return;
+				}
+				probe = true;
+				delay = PROBE_INTERVAL;
+				break;
+			default:
+				return;
+			}
+
+			if (probe)
+			{ entry.probes++; }
+			entry.timeout = this.timers.schedule(() -> this.age(entry), delay);
+		}
+
+		if (probe)
+		{
+			this.prober.probe(entry.getIp(), entry.getInterface(),
+					entry.getMac());
+		}
+	}
+
+	/**
+	 * Remove a mapping, so the next packet to its IP address waits for ARP.
+	 * Must be called while synchronized.
+	 */
+	private void remove(ArpEntry entry)
+	{
+		Table table = this.table;
+		int slot = table.find(entry.getIp());
+		if (slot < 0)
+		{ return; }
+		table.slots.set(slot, REMOVED);
+		table.size--;
+		table.removed++;
+		this.version.incrementAndGet();
+	}
+
+	/**
+	 * Add an entry, or replace the entry for the same address, growing the
+	 * table first if it is full. Must be called while synchronized.
+	 */
+	private void put(ArpEntry entry)
+	{
+		Table table = this.table;
+		int slot = table.find(entry.getIp());
+		if (slot >= 0)
+		{ table.slots.set(slot, entry); }
+		else
+		{
+			if (!table.hasRoom())
+			{
+				table = table.grow();
+				this.table = table;
+			}
+			table.add(entry);
+		}
+		this.version.incrementAndGet();
+	}
 	
 	/**
 	 * Populate the ARP cache from a file.
@@ -128,9 +452,14 @@ public class ArpCache
 	
 	public String toString()
 	{
-        String result = "IP\t\tMAC\n";
-        for (ArpEntry entry : this.entries.values())
-        { result += entry.toString()+"\n"; }
+        String result = "IP\t\tMAC\t\t\tState\n";
+        AtomicReferenceArray<ArpEntry> slots = this.table.slots;
+        for (int i = 0; i < slots.length(); i++)
+        {
+        	ArpEntry entry = slots.get(i);
+        	if (entry != null && entry != REMOVED)
+        	{ result += entry.toString()+"\n"; }
+        }
 	    return result;
 	}
 }
@@ -1,5 +1,7 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.TimerWheel;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
@@ -7,50 +9,157 @@ import net.floodlightcontroller.packet.MACAddress;
  * An entry in ARP table that maps an IP address to a MAC address.
  * @author Aaron Gember-Jacobson
  */
-public class ArpEntry 
+public class ArpEntry
 {
+	/**
+	 * State of a mapping, as in a Linux neighbour table. The mapping is used
+	 * for forwarding in every state.
+	 */
+	public enum State
+	{
+		/** Confirmed recently */
+		REACHABLE,
+		/** Not confirmed recently, and not in use */
+		STALE,
+		/** In use but not confirmed recently; unicast requests are being
+		 *  sent to confirm it */
+		PROBE,
+		/** Loaded from a file; never ages */
+		PERMANENT
+	}
+
 	/** MAC address corresponding to IP address */
-	private MACAddress mac;
-	
+	private final MACAddress mac;
+
 	/** IP address corresponding to MAC address */
-	private int ip;
-	
+	private final int ip;
+
 	/** Time (in milliseconds since the epoch) the mapping was created */
 	private long timeAdded;
-	
+
+	/** Interface on which the mapping was learned; null if permanent */
+	private Iface iface;
+
+	/** Current state of the mapping */
+	private volatile State state;
+
+	/** Time (in milliseconds since the epoch) the mapping was last
+	 *  confirmed */
+	private volatile long timeConfirmed;
+
+	/** True if the mapping has been used to forward a packet since it was
+	 *  last checked */
+	private volatile boolean used;
+
+	/** Number of unicast requests sent since the mapping entered PROBE */
+	int probes;
+
+	/** Timer that ages the mapping */
+	TimerWheel.Timeout timeout;
+
 	/**
-	 * Create an ARP table entry that maps an IP address to a MAC address.
+	 * Create a permanent ARP table entry that maps an IP address to a MAC
+	 * address.
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public ArpEntry(MACAddress mac, int ip)
+	{ this(mac, ip, null, State.PERMANENT); }
+
+	/**
+	 * Create an ARP table entry that maps an IP address to a MAC address.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @param iface interface on which the mapping was learned
+	 * @param state initial state of the mapping
+	 */
+	public ArpEntry(MACAddress mac, int ip, Iface iface, State state)
 	{
 		this.mac = mac;
 		this.ip = ip;
 		this.timeAdded = System.currentTimeMillis();
+		this.iface = iface;
+		this.state = state;
+		this.timeConfirmed = this.timeAdded;
 	}
-	
+
 	/**
 	 * @return MAC address corresponding to IP address
 	 */
 	public MACAddress getMac()
 	{ return this.mac; }
-	
+
 	/**
 	 * @return IP address corresponding to MAC address
 	 */
 	public int getIp()
 	{ return this.ip; }
-	
+
 	/**
 	 * @return time (in milliseconds since the epoch) the mapping was created
 	 */
 	public long getTimeAdded()
 	{ return this.timeAdded; }
-	
+
+	/**
+	 * @return interface on which the mapping was learned; null if permanent
+	 */
+	public Iface getInterface()
+	{ return this.iface; }
+
+	/**
+	 * @return current state of the mapping
+	 */
+	public State getState()
+	{ return this.state; }
+
+	void setState(State state)
+	{ this.state = state; }
+
+	/**
+	 * @return time (in milliseconds since the epoch) the mapping was last
+	 *         confirmed
+	 */
+	public long getTimeConfirmed()
+	{ return this.timeConfirmed; }
+
+	/**
+	 * Record that the mapping was confirmed by the host, making it
+	 * reachable again.
+	 */
+	void confirm()
+	{
+		this.timeConfirmed = System.currentTimeMillis();
+		this.probes = 0;
+		if (this.state != State.PERMANENT)
+		{ this.state = State.REACHABLE; }
+	}
+
+	/**
+	 * Record that the mapping was used to forward a packet. Called for every
+	 * packet forwarded, so the flag is only written when it is not yet set.
+	 */
+	public void markUsed()
+	{
+		if (!this.used)
+		{ this.used = true; }
+	}
+
+	/**
+	 * Clear the flag recording that the mapping was used.
+	 * @return true if the mapping was used since the flag was last cleared
+	 */
+	boolean takeUsed()
+	{
+		if (!this.used)
+		{ return false; }
+		this.used = false;
+		return true;
+	}
+
 	public String toString()
 	{
-		return String.format("%s \t%s", IPv4.fromIPv4Address(this.ip),
-				this.mac.toString());
+		return String.format("%s \t%s \t%s", IPv4.fromIPv4Address(this.ip),
+				this.mac.toString(), this.state);
 	}
 }
@@ -1,69 +1,160 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Logger;
+import edu.wisc.cs.sdn.vnet.TimerWheel;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
 import net.floodlightcontroller.packet.IPv4;
 
 
+/**
+ * a packet waiting for ARP, kept as the serialized frame ready to send
+ */
+class PendingFrame {
+    byte[] frame;
+    // the interface the packet came in, null if the router generated it
+    Iface inIface;
+
+    public PendingFrame(byte[] frame, Iface inIface) {
+        this.frame = frame;
+        this.inIface = inIface;
+    }
+}
+
 class ArpPacketEntry {
     int count;
-    Iface iface;
     long timeStamp;
-    List<Ethernet> waitingPackets;
-
-    public ArpPacketEntry() {
+    // the interface the requests go out of
+    Iface outIface;
+    // waiting frames, oldest first
+    ArrayDeque<PendingFrame> waitingFrames;
+    // bytes of the waiting frames
+    int bytes;
+    // timer for the next resend, cancelled when the reply comes
+    TimerWheel.Timeout timeout;
 
-    }
-    public ArpPacketEntry(int count, Iface iface,long timeStamp) {
+    public ArpPacketEntry(int count, Iface outIface, long timeStamp) {
         this.count = count;
-        this.iface = iface;
+        this.outIface = outIface;
         this.timeStamp = timeStamp;
-        waitingPackets = new LinkedList<Ethernet>();
+        waitingFrames = new ArrayDeque<PendingFrame>();
     }
 
 }
 
 /**
- * A data stucture to store the waiting packet
+ * A data stucture to store the packets waiting for ARP replies. The bytes
+ * waiting for each next hop, and in total, are capped; once a cap is reached
+ * either the oldest waiting packets or the new packet are dropped. Each next
+ * hop is guarded by one of a fixed set of locks, so storing packets for
+ * different next hops rarely contends.
+ * <p>
+ * While an entry exists a request for its ip is outstanding, so only the
+ * packet that creates an entry sends a request, and the entry's timer sends
+ * the retries.
  */
-public class ArpQueue implements Runnable {
+public class ArpQueue {
+
+    private static final Logger log = Logger.getLogger(ArpQueue.class);
+
+    // time to wait for a reply before resending the request, in milliseconds
+    private static final int RETRY_INTERVAL = 1000;
+
+    // default caps on the bytes waiting for one next hop and in total
+    public static final int DEFAULT_HOP_BYTES = 64 * 1024;
+    public static final long DEFAULT_TOTAL_BYTES = 1024 * 1024;
+
+    // number of locks the next hops are spread over, a power of two
+    private static final int STRIPES = 16;
+
+    /**
+     * which packets to drop when a cap is reached
+     */
+    public enum DropPolicy {
+        // drop the packets that have waited longest, as Linux does
+        DROP_OLDEST,
+        // keep the waiting packets and drop the new one
+        DROP_NEWEST
+    }
 
     /**
      * instance field
      */
     // the corresponding router
     Router router;
-    // hashtable to store the count and packet
-    Map<Integer, Byte> countMap;
-    // the hashmap to store the packet
-    // Map<Integer, List<Ethernet>> packetMap;
-    Map<Integer, Map<Ethernet, Iface>> packetMap;
-    // the hashmap to store the each ip time stamp
-    Map<Integer, Long> timeStMap;
 
     // a map to store the ip and entry
     Map<Integer, ArpPacketEntry> packetEntries;
-    // Thread to resend request
-    Thread  genAPRThread;
+    // locks guarding the entries, chosen by the ip
+    Object[] locks;
+    // the router's timers, which resend requests
+    TimerWheel timers;
+
+    // caps and what to do when they are reached
+    private volatile int hopBytes;
+    private volatile long totalBytes;
+    private volatile DropPolicy dropPolicy;
+
+    // bytes of the frames waiting for every next hop
+    private AtomicLong queuedBytes;
+
+    // counters
+    private LongAdder stored;
+    private LongAdder sent;
+    private LongAdder droppedHopLimit;
+    private LongAdder droppedTotalLimit;
+    private LongAdder droppedUnresolved;
+    private LongAdder suppressedRequests;
 
     /**
      * @param rt the router corresponding to the queue
      */
     public ArpQueue(Router rt) {
         this.router = rt;
-        countMap = new ConcurrentHashMap<Integer, Byte>();
-        packetMap = new ConcurrentHashMap<Integer, Map<Ethernet, Iface>>();
-        timeStMap = new ConcurrentHashMap<Integer, Long>();
         packetEntries = new ConcurrentHashMap<Integer, ArpPacketEntry>();
-        genAPRThread = new Thread(this);
-        genAPRThread.start();
+        locks = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        timers = rt.getTimers();
+        hopBytes = DEFAULT_HOP_BYTES;
+        totalBytes = DEFAULT_TOTAL_BYTES;
+        dropPolicy = DropPolicy.DROP_OLDEST;
+        queuedBytes = new AtomicLong();
+        stored = new LongAdder();
+        sent = new LongAdder();
+        droppedHopLimit = new LongAdder();
+        droppedTotalLimit = new LongAdder();
+        droppedUnresolved = new LongAdder();
+        suppressedRequests = new LongAdder();
+    }
+
+    /**
+     * set the caps on waiting packets
+     * @param hopBytes bytes that may wait for one next hop
+     * @param totalBytes bytes that may wait for all next hops together
+     */
+    public void setLimits(int hopBytes, long totalBytes) {
+        this.hopBytes = hopBytes;
+        this.totalBytes = totalBytes;
     }
 
     /**
-     * 
+     * @param dropPolicy which packets to drop when a cap is reached
+     */
+    public void setDropPolicy(DropPolicy dropPolicy) {
+        this.dropPolicy = dropPolicy;
+    }
+
+    /**
+     *
      * @param ip
      * @return if ip in the map
      */
@@ -72,106 +163,253 @@ public class ArpQueue implements Runnable {
     }
 
     /**
-     * store new packet corresponding its ip into map
+     * @return the lock guarding an ip's entry
+     */
+    private Object lockFor(int ip) {
+        int h = ip * 0x9e3779b9;
+        return locks[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * store new packet corresponding its ip into map; the packet is
+     * serialized now if it is kept, so everything but its destination mac
+     * address must already be set
      * @param etherPacket
-     * @param ip
+     * @param ip the next hop
+     * @param inIface the interface the packet came in, null if the router
+     *        generated it
+     * @param outIface the interface the route to the next hop goes out of
+     * @return true if no request for the ip was outstanding, so the caller
+     *         should send one; this does not say whether the packet itself
+     *         was stored or dropped
      */
-    public  void storePacket(Ethernet etherPacket, int ip, Iface inIface) {
-        
-        synchronized(this.packetEntries) {
-            // when ip not in map, initiate a new entry
-            if (!containsIP(ip)){
-                // countMap.put(ip, (byte)1);
-                // Map<Ethernet, Iface> packetList = new ConcurrentHashMap<Ethernet, Iface>();
-                // packetList.put(etherPacket, inIface);
-                // packetMap.put(ip, packetList);
-                // timeStMap.put(ip, System.currentTimeMillis());
-                ArpPacketEntry arpPacketEntry = new ArpPacketEntry(1, inIface, System.currentTimeMillis());
-                arpPacketEntry.waitingPackets.add(etherPacket);
-                this.packetEntries.put(ip, arpPacketEntry);
-                // router.genARPRequest(ip);
+    public boolean storePacket(Ethernet etherPacket, int ip, Iface inIface, Iface outIface) {
+        // packets the router generated have no destination yet, leave room
+        // for it to be filled in when the reply comes
+        if (etherPacket.getDestinationMAC() == null) {
+            etherPacket.setDestinationMACAddress(new byte[6]);
+        }
+        int size = etherPacket.getSerializedLength();
+
+        synchronized(lockFor(ip)) {
+            ArpPacketEntry arpPacketEntry = packetEntries.get(ip);
+            DropPolicy policy = this.dropPolicy;
+
+            // when ip not in map, initiate a new entry, so the ip is resolved
+            // even if this packet is dropped
+            boolean created = false;
+            if (arpPacketEntry == null) {
+                ArpPacketEntry newEntry = new ArpPacketEntry(1, outIface, System.currentTimeMillis());
+                newEntry.timeout = timers.schedule(() -> retry(ip, newEntry), RETRY_INTERVAL);
+                this.packetEntries.put(ip, newEntry);
+                arpPacketEntry = newEntry;
+                created = true;
             } else {
-                // if contains the ip, just simple add to the map
-                ArpPacketEntry arpPacketEntry = packetEntries.get(ip);
-                arpPacketEntry.waitingPackets.add(etherPacket);
+                // a request is already on its way, the timer resends it,
+                // whether or not this packet is kept
+                suppressedRequests.increment();
+            }
+
+            // make room under the cap for this next hop
+            if (size > hopBytes) {
+                droppedHopLimit.increment();
+                return created;
+            }
+            while (arpPacketEntry.bytes + size > hopBytes) {
+                if (policy == DropPolicy.DROP_NEWEST) {
+                    droppedHopLimit.increment();
+                    return created;
+                }
+                dropOldest(arpPacketEntry);
+                droppedHopLimit.increment();
+            }
+
+            // make room under the total cap, only ever dropping this next
+            // hop's packets, so one busy next hop cannot push out the others
+            while (true) {
+                long queued = queuedBytes.get();
+                if (queued + size <= totalBytes) {
+                    if (queuedBytes.compareAndSet(queued, queued + size)) {
+                        break;
+                    }
+                    continue;
+                }
+                if (policy == DropPolicy.DROP_NEWEST
+                        || arpPacketEntry.waitingFrames.isEmpty()) {
+                    droppedTotalLimit.increment();
+                    return created;
+                }
+                dropOldest(arpPacketEntry);
+                droppedTotalLimit.increment();
             }
+
+            // the packet is kept, so only now serialize it
+            byte[] frame = etherPacket.serialize();
+            arpPacketEntry.waitingFrames.addLast(new PendingFrame(frame, inIface));
+            arpPacketEntry.bytes += size;
+            stored.increment();
+            return created;
         }
-     
     }
 
     /**
-     * handle the ARP reply message 
+     * drop the packet that has waited longest for an entry; the caller must
+     * hold the entry's lock
+     */
+    private void dropOldest(ArpPacketEntry arpPacketEntry) {
+        PendingFrame oldest = arpPacketEntry.waitingFrames.removeFirst();
+        arpPacketEntry.bytes -= oldest.frame.length;
+        queuedBytes.addAndGet(-oldest.frame.length);
+    }
+
+    /**
+     * remove an entry and release the bytes it holds; the caller must hold
+     * the entry's lock
+     */
+    private void removeEntry(int ip, ArpPacketEntry arpPacketEntry) {
+        packetEntries.remove(ip);
+        queuedBytes.addAndGet(-arpPacketEntry.bytes);
+    }
+
+    /**
+     * handle the ARP reply message
      * @param ip the target ip
      * @param intIface the message come in
      * @param macAddr  the target mac addr
      */
     public void handleAPRreply(int ip, Iface intIface, byte[] macAddr) {
-        synchronized(this.packetEntries) {
-             // if not contain target ip just return
-            if (!containsIP(ip)) {
-                System.out.println("handleAPRreply: no packet need to be forwarded");
+        ArpPacketEntry arpPacketEntry;
+        synchronized(lockFor(ip)) {
+            arpPacketEntry = packetEntries.get(ip);
+            // if not contain target ip just return
+            if (arpPacketEntry == null) {
+                log.debug("handleAPRreply: no packet need to be forwarded");
                 return;
             }
-            ArpPacketEntry arpPacketEntry= packetEntries.remove(ip);
-            // send waiting packet to the destination
-            for (Ethernet etherPacket : arpPacketEntry.waitingPackets) {
-                etherPacket.setDestinationMACAddress(macAddr);
-                router.sendPacket(etherPacket, intIface);
-            }
+            removeEntry(ip, arpPacketEntry);
+            timers.cancel(arpPacketEntry.timeout);
         }
+
+        // fill in the destination and send the waiting frames in one batch
+        long mac = 0;
+        for (byte b : macAddr) {
+            mac = (mac << 8) | (b & 0xff);
+        }
+        EthernetView frameView = new EthernetView();
+        router.beginBatch();
+        for (PendingFrame pending : arpPacketEntry.waitingFrames) {
+            frameView.wrap(ByteBuffer.wrap(pending.frame), 0, pending.frame.length);
+            frameView.setDestinationMAC(mac);
+            router.sendFrame(frameView, intIface);
+        }
+        router.endBatch();
+        sent.add(arpPacketEntry.waitingFrames.size());
     }
 
     /**
-     *  keep sending request every second
+     * resend the request for an ip once a second, run by the router's timers;
+     * after three requests give up and send ICMP back instead
+     * @param ip the ip being resolved
+     * @param arpPacketEntry the entry the timer was scheduled for
      */
-    @Override
-    public void run() {
-        while(true) {
-            // do every second
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                
-                System.out.println(e.getMessage());
+    private void retry(int ip, ArpPacketEntry arpPacketEntry) {
+        boolean timedOut;
+        synchronized(lockFor(ip)) {
+            // the reply came, or the entry was replaced, while the timer fired
+            if (packetEntries.get(ip) != arpPacketEntry) {
+                return;
             }
-            synchronized(this.packetEntries) {
-                for (int ip : this.packetEntries.keySet()) {
-                    ArpPacketEntry arpPacketEntry = packetEntries.get(ip);
-                    // when time out
-                    if ((System.currentTimeMillis() - arpPacketEntry.timeStamp) >= 1000) {
-                        if (arpPacketEntry.count >= 3) {
-                            System.out.println("ARPThread: time out drop the packet");
-                            // send ICMP back to the each source
-                            for (Ethernet ethernetPacket : arpPacketEntry.waitingPackets) {
-                                
-                                IPv4 ipv4Packet = (IPv4) ethernetPacket.getPayload();
-                                // if (arpPacketEntry.iface == null) {
-                                //     System.out.println("arpPacketEntry null");
-                                //     continue;
-                                // }
-                                router.forwardICMPPacket(ipv4Packet, arpPacketEntry.iface, (byte)3, (byte)1);
-                            }
-                            // clear all the packet
-                            packetEntries.remove(ip);
-                        } else {
-                            System.out.println("ARPThread: resend request");
-                            // send request again and increment count
-                            arpPacketEntry.count++;
-                            arpPacketEntry.timeStamp = System.currentTimeMillis();
-                            router.genARPRequest(ip);
-                            // byte count = countMap.get(ip);
-                            // timeStMap.put(ip, System.currentTimeMillis());
-                            // countMap.put(ip, (byte)(count+1));
-                            // router.genARPRequest(ip);
-                        }
-                    
-                    }
-                }
+            timedOut = arpPacketEntry.count >= 3;
+            if (timedOut) {
+                // clear all the packet
+                removeEntry(ip, arpPacketEntry);
+            } else {
+                // increment count and try again later
+                arpPacketEntry.count++;
+                arpPacketEntry.timeStamp = System.currentTimeMillis();
+                arpPacketEntry.timeout = timers.schedule(() -> retry(ip, arpPacketEntry), RETRY_INTERVAL);
             }
-            
+        }
+
+        if (!timedOut) {
+            log.debug("ARPThread: resend request");
+            router.genARPRequest(ip, arpPacketEntry.outIface);
+            return;
+        }
 
+        log.debug("ARPThread: time out drop the packet");
+        droppedUnresolved.add(arpPacketEntry.waitingFrames.size());
+        // send ICMP back to the each source, together
+        router.beginBatch();
+        for (PendingFrame pending : arpPacketEntry.waitingFrames) {
+            // no ICMP about packets the router generated itself
+            if (pending.inIface == null) {
+                continue;
+            }
+            Ethernet ethernetPacket = new Ethernet();
+            ethernetPacket.deserialize(pending.frame, 0, pending.frame.length);
+            IPv4 ipv4Packet = (IPv4) ethernetPacket.getPayload();
+            router.forwardICMPPacket(ipv4Packet, pending.inIface, (byte)3, (byte)1);
         }
-        
-    } 
+        router.endBatch();
+    }
+
+    /**
+     * @return number of packets stored to wait for ARP
+     */
+    public long getStored() {
+        return stored.sum();
+    }
+
+    /**
+     * @return number of waiting packets sent once ARP was resolved
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * @return number of packets dropped at the cap for a next hop
+     */
+    public long getDroppedHopLimit() {
+        return droppedHopLimit.sum();
+    }
+
+    /**
+     * @return number of packets dropped at the total cap
+     */
+    public long getDroppedTotalLimit() {
+        return droppedTotalLimit.sum();
+    }
+
+    /**
+     * @return number of packets dropped because ARP was never resolved
+     */
+    public long getDroppedUnresolved() {
+        return droppedUnresolved.sum();
+    }
+
+    /**
+     * @return number of requests not sent because one was outstanding
+     */
+    public long getSuppressedRequests() {
+        return suppressedRequests.sum();
+    }
+
+    /**
+     * @return bytes of the packets waiting for ARP
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public String toString() {
+        return String.format("arp queue: %d stored, %d sent, %d dropped at "
+                + "next hop limit, %d at total limit, %d unresolved; %d bytes waiting; "
+                + "%d requests suppressed",
+                getStored(), getSent(), getDroppedHopLimit(),
+                getDroppedTotalLimit(), getDroppedUnresolved(), getQueuedBytes(),
+                getSuppressedRequests());
+    }
 
 }
@@ -0,0 +1,289 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A DIR-24-8 forwarding table. A primary array with one slot per /24 maps
+ * the upper 24 bits of an address either directly to a route or to a
+ * secondary block of 256 slots covering the last octet. Lookups take one
+ * memory access, or two for destinations covered by prefixes longer than
+ * /24, at the cost of a 64MB primary array.
+ *
+ * Slots encode a route index and the prefix length of that route, so
+ * routes can be added and removed incrementally without rebuilding the
+ * whole table.
+ *
+ * Updates must be serialized by the caller, but lookups need no locking.
+ * Slots and routes are written with release semantics after everything
+ * they point to, so a reader always sees a fully built block or route.
+ * Secondary blocks stay bound to their /24 once allocated, since a reader
+ * may still be walking a block when it would otherwise be recycled. A route
+ * index can be recycled while a reader holds a stale slot, so callers should
+ * check that the returned route actually covers the address.
+ */
+class Dir248Table
+{
+	/** Flag marking a primary slot that points to a secondary block */
+	private static final int BLOCK = 0x80000000;
+
+	/** Number of slots in a secondary block */
+	private static final int BLOCK_SIZE = 256;
+
+	/** Primary table, indexed by the upper 24 bits of an address */
+	private final AtomicIntegerArray tbl24;
+
+	/** Secondary blocks, indexed by block number and the last octet */
+	private volatile AtomicIntegerArray tblLong;
+
+	/** Number of secondary blocks allocated in tblLong */
+	private int blockCount;
+
+	/** Routes referenced by slots; indexed by route index */
+	private volatile AtomicReferenceArray<RouteEntry> routes;
+
+	/** Route indices that have been released and can be reused */
+	private int[] freeRoutes;
+	private int freeRouteCount;
+
+	/** Number of route indices handed out */
+	private int routeCount;
+
+	/** Route index for each stored prefix */
+	private Map<Long,Integer> indices;
+
+	/**
+	 * Create an empty DIR-24-8 table.
+	 */
+	public Dir248Table()
+	{
+		this.tbl24 = new AtomicIntegerArray(1 << 24);
+		this.tblLong = new AtomicIntegerArray(16 * BLOCK_SIZE);
+		this.routes = new AtomicReferenceArray<RouteEntry>(64);
+		this.freeRoutes = new int[16];
+		this.indices = new HashMap<Long,Integer>();
+	}
+
+	/**
+	 * Find the route entry with the longest prefix matching an address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists; the entry may
+	 *         be stale if the table is being updated concurrently
+	 */
+	public RouteEntry lookup(int ip)
+	{
+		// Read the primary slot before the block table, which is replaced
+		// before any slot refers to a block beyond its old end
+		int slot = this.tbl24.get(ip >>> 8);
+		if (slot < 0)
+		{ slot = this.tblLong.get(((slot & ~BLOCK) << 8) | (ip & 0xff)); }
+		if (0 == slot)
+		{ return null; }
+		return this.routes.get((slot >>> 6) - 1);
+	}
+
+	/**
+	 * Add a route entry to the table, replacing any entry for the same prefix.
+	 * @param entry the route entry to add
+	 */
+	public void insert(RouteEntry entry)
+	{
+		int length = RouteTrie.prefixLength(entry.getMaskAddress());
+		int prefix = entry.getDestinationAddress() & RouteTrie.mask(length);
+		Long key = key(prefix, length);
+
+		Integer existing = this.indices.get(key);
+		if (existing != null)
+		{
+			// Same prefix, so every slot pointing at the index stays valid
+			this.routes.lazySet(existing, entry);
+			return;
+		}
+
+		int index = this.allocateRoute(entry);
+		this.indices.put(key, index);
+		int slot = encode(index, length);
+
+		if (length <= 24)
+		{
+			int start = prefix >>> 8;
+			int end = start + (1 << (24 - length));
+			for (int i = start; i < end; i++)
+			{
+				int current = this.tbl24.get(i);
+				if (current < 0)
+				{
+					int base = (current & ~BLOCK) * BLOCK_SIZE;
+					this.fillCovered(base, base + BLOCK_SIZE, slot, length);
+				}
+				else if (lengthOf(current) <= length)
+				{ this.tbl24.lazySet(i, slot); }
+			}
+		}
+		else
+		{
+			int i = prefix >>> 8;
+			int current = this.tbl24.get(i);
+			if (current >= 0)
+			{
+				current = BLOCK | this.allocateBlock(current);
+				this.tbl24.lazySet(i, current);
+			}
+			int base = (current & ~BLOCK) * BLOCK_SIZE;
+			int start = base + (prefix & 0xff);
+			this.fillCovered(start, start + (1 << (32 - length)), slot, length);
+		}
+	}
+
+	/**
+	 * Remove a route entry from the table.
+	 * @param entry the route entry to remove
+	 * @param parent the longest route entry whose prefix covers the removed
+	 *        prefix, which takes over its slots; null if there is none
+	 */
+	public void remove(RouteEntry entry, RouteEntry parent)
+	{
+		int length = RouteTrie.prefixLength(entry.getMaskAddress());
+		int prefix = entry.getDestinationAddress() & RouteTrie.mask(length);
+		Integer index = this.indices.remove(key(prefix, length));
+		if (null == index)
+		{ return; }
+
+		int slot = encode(index, length);
+		int replacement = 0;
+		if (parent != null)
+		{
+			int parentLength = RouteTrie.prefixLength(parent.getMaskAddress());
+			Integer parentIndex = this.indices.get(key(
+					parent.getDestinationAddress() & RouteTrie.mask(parentLength),
+					parentLength));
+			if (parentIndex != null)
+			{ replacement = encode(parentIndex, parentLength); }
+		}
+
+		if (length <= 24)
+		{
+			int start = prefix >>> 8;
+			int end = start + (1 << (24 - length));
+			for (int i = start; i < end; i++)
+			{
+				int current = this.tbl24.get(i);
+				if (current < 0)
+				{
+					int base = (current & ~BLOCK) * BLOCK_SIZE;
+					this.replace(base, base + BLOCK_SIZE, slot, replacement);
+				}
+				else if (current == slot)
+				{ this.tbl24.lazySet(i, replacement); }
+			}
+		}
+		else
+		{
+			int i = prefix >>> 8;
+			int base = (this.tbl24.get(i) & ~BLOCK) * BLOCK_SIZE;
+			int start = base + (prefix & 0xff);
+			this.replace(start, start + (1 << (32 - length)), slot, replacement);
+		}
+
+		this.routes.lazySet(index, null);
+		if (this.freeRouteCount == this.freeRoutes.length)
+		{ this.freeRoutes = Arrays.copyOf(this.freeRoutes, this.freeRouteCount * 2); }
+		this.freeRoutes[this.freeRouteCount++] = index;
+	}
+
+	/**
+	 * Point secondary slots at a route wherever they currently hold a route
+	 * with a prefix no longer than the new one.
+	 */
+	private void fillCovered(int start, int end, int slot, int length)
+	{
+		AtomicIntegerArray table = this.tblLong;
+		for (int j = start; j < end; j++)
+		{
+			if (lengthOf(table.get(j)) <= length)
+			{ table.lazySet(j, slot); }
+		}
+	}
+
+	/**
+	 * Replace one slot value with another in a range of secondary slots.
+	 */
+	private void replace(int start, int end, int slot, int replacement)
+	{
+		AtomicIntegerArray table = this.tblLong;
+		for (int j = start; j < end; j++)
+		{
+			if (table.get(j) == slot)
+			{ table.lazySet(j, replacement); }
+		}
+	}
+
+	/**
+	 * Allocate a secondary block with every slot set to a value.
+	 * @return the block number
+	 */
+	private int allocateBlock(int slot)
+	{
+		int block = this.blockCount++;
+		AtomicIntegerArray table = this.tblLong;
+		if (this.blockCount * BLOCK_SIZE > table.length())
+		{
+			AtomicIntegerArray grown = new AtomicIntegerArray(table.length() * 2);
+			for (int j = 0; j < block * BLOCK_SIZE; j++)
+			{ grown.lazySet(j, table.get(j)); }
+			table = grown;
+		}
+		for (int j = block * BLOCK_SIZE; j < (block + 1) * BLOCK_SIZE; j++)
+		{ table.lazySet(j, slot); }
+		this.tblLong = table;
+		return block;
+	}
+
+	/**
+	 * Assign a route index to a route entry.
+	 * @return the route index
+	 */
+	private int allocateRoute(RouteEntry entry)
+	{
+		int index;
+		AtomicReferenceArray<RouteEntry> table = this.routes;
+		if (this.freeRouteCount > 0)
+		{ index = this.freeRoutes[--this.freeRouteCount]; }
+		else
+		{
+			index = this.routeCount++;
+			if (index == table.length())
+			{
+				AtomicReferenceArray<RouteEntry> grown = 
+						new AtomicReferenceArray<RouteEntry>(table.length() * 2);
+				for (int i = 0; i < table.length(); i++)
+				{ grown.lazySet(i, table.get(i)); }
+				table = grown;
+			}
+		}
+		table.lazySet(index, entry);
+		this.routes = table;
+		return index;
+	}
+
+	/**
+	 * @return slot value referencing a route index with a prefix length
+	 */
+	private static int encode(int index, int length)
+	{ return ((index + 1) << 6) | length; }
+
+	/**
+	 * @return prefix length of the route in a slot; -1 for an empty slot
+	 */
+	private static int lengthOf(int slot)
+	{ return (0 == slot) ? -1 : (slot & 0x3f); }
+
+	/**
+	 * @return map key for a prefix
+	 */
+	private static Long key(int prefix, int length)
+	{ return ((prefix & 0xffffffffL) << 6) | length; }
+}
@@ -0,0 +1,227 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Token buckets that limit how often a router sends ICMP error messages,
+ * both for each ICMP type and for each source address the errors are sent
+ * to. As in Linux, only destination unreachable, source quench, time
+ * exceeded and parameter problem messages are limited; echo replies are
+ * not.
+ *
+ * Each bucket holds credit measured in nanoseconds. Credit accrues with
+ * elapsed time up to the burst size, and each message spends one interval
+ * of it. Per-source buckets live in a fixed open-addressing table keyed on
+ * the address; when a source's probes find no free slot, it takes over the
+ * slot of the source seen least recently. Nothing is allocated when a
+ * message is checked, whether it is allowed or suppressed.
+ */
+public class IcmpRateLimiter
+{
+	/** Default messages per second, and burst, for each ICMP type */
+	public static final int DEFAULT_TYPE_RATE = 1000;
+	public static final int DEFAULT_TYPE_BURST = 50;
+
+	/** Default messages per second, and burst, for each source */
+	public static final int DEFAULT_SOURCE_RATE = 1;
+	public static final int DEFAULT_SOURCE_BURST = 6;
+
+	/** Number of sources whose buckets are kept */
+	private static final int SOURCES = 1024;
+
+	/** Number of slots examined for a source's bucket */
+	private static final int MAX_PROBES = 4;
+
+	/** ICMP types that are limited: 3, 4, 11 and 12 */
+	private static final long LIMITED_TYPES = (1L << 3) | (1L << 4)
+			| (1L << 11) | (1L << 12);
+
+	/** Nanoseconds of credit each message spends, for each kind of bucket;
+	 *  0 if messages are not limited */
+	private long typeInterval;
+	private long sourceInterval;
+
+	/** Most credit each kind of bucket can hold, in nanoseconds */
+	private long typeBurst;
+	private long sourceBurst;
+
+	/** Credit, and time it was last updated, for each ICMP type */
+	private long[] typeCredit;
+	private long[] typeUpdated;
+
+	/** Source address for each slot; 0 if the slot is empty */
+	private int[] sourceKeys;
+
+	/** Credit, and time it was last updated, for each source slot */
+	private long[] sourceCredit;
+	private long[] sourceUpdated;
+
+	/** Number of messages suppressed by each kind of bucket */
+	private long typeSuppressed;
+	private long sourceSuppressed;
+
+	/**
+	 * Create a rate limiter with the default rates and bursts.
+	 */
+	public IcmpRateLimiter()
+	{
+		this.typeCredit = new long[256];
+		this.typeUpdated = new long[256];
+		this.sourceKeys = new int[SOURCES];
+		this.sourceCredit = new long[SOURCES];
+		this.sourceUpdated = new long[SOURCES];
+		this.setTypeLimit(DEFAULT_TYPE_RATE, DEFAULT_TYPE_BURST);
+		this.setSourceLimit(DEFAULT_SOURCE_RATE, DEFAULT_SOURCE_BURST);
+	}
+
+	/**
+	 * Set the limit for each ICMP type; the buckets start full.
+	 * @param rate messages per second; 0 for no limit
+	 * @param burst messages that can be sent at once
+	 */
+	public synchronized void setTypeLimit(int rate, int burst)
+	{
+		this.typeInterval = (rate > 0) ? 1000000000L / rate : 0;
+		this.typeBurst = this.typeInterval * Math.max(burst, 1);
+		long now = System.nanoTime();
+		for (int i = 0; i < this.typeCredit.length; i++)
+		{
+			this.typeCredit[i] = this.typeBurst;
+			this.typeUpdated[i] = now;
+		}
+	}
+
+	/**
+	 * Set the limit for each source; buckets for every source are
+	 * discarded, so they start full.
+	 * @param rate messages per second; 0 for no limit
+	 * @param burst messages that can be sent at once
+	 */
+	public synchronized void setSourceLimit(int rate, int burst)
+	{
+		this.sourceInterval = (rate > 0) ? 1000000000L / rate : 0;
+		this.sourceBurst = this.sourceInterval * Math.max(burst, 1);
+		for (int i = 0; i < SOURCES; i++)
+		{ this.sourceKeys[i] = 0; }
+	}
+
+	/**
+	 * Set the limits from a specification of the form
+	 * <code>rate,burst[,type_rate,type_burst]</code>, giving the rate and
+	 * burst for each source and, optionally, for each ICMP type.
+	 * @param spec the specification
+	 * @throws IllegalArgumentException if the specification is invalid
+	 */
+	public void configure(String spec)
+	{
+		String[] fields = spec.split(",");
+		if (fields.length != 2 && fields.length != 4)
+		{ throw new IllegalArgumentException("Invalid ICMP limit: " + spec); }
+		int[] values = new int[fields.length];
+		for (int i = 0; i < fields.length; i++)
+		{
+			values[i] = Integer.parseInt(fields[i].trim());
+			if (values[i] < 0)
+			{ throw new IllegalArgumentException("Invalid ICMP limit: " + spec); }
+		}
+		this.setSourceLimit(values[0], values[1]);
+		if (4 == fields.length)
+		{ this.setTypeLimit(values[2], values[3]); }
+	}
+
+	/**
+	 * Check whether an ICMP message may be sent, spending credit from its
+	 * type's bucket and its source's bucket if it may.
+	 * @param type ICMP type of the message
+	 * @param source address the message is sent to
+	 * @return true if the message may be sent, false if it is suppressed
+	 */
+	public synchronized boolean allow(int type, int source)
+	{
+		type &= 0xff;
+		if (type >= 64 || 0 == (LIMITED_TYPES & (1L << type)))
+		{ return true; }
+		long now = System.nanoTime();
+
+		// Take from the type's bucket only once the source's bucket is known
+		// to allow the message, so suppressed messages cost no type credit
+		int slot = -1;
+		if (this.sourceInterval > 0)
+		{
+			slot = this.sourceSlot(source, now);
+			long credit = Math.min(this.sourceBurst, this.sourceCredit[slot]
+					+ (now - this.sourceUpdated[slot]));
+			this.sourceCredit[slot] = credit;
+			this.sourceUpdated[slot] = now;
+			if (credit < this.sourceInterval)
+			{
+				this.sourceSuppressed++;
+				return false;
+			}
+		}
+
+		if (this.typeInterval > 0)
+		{
+			long credit = Math.min(this.typeBurst, this.typeCredit[type]
+					+ (now - this.typeUpdated[type]));
+			this.typeUpdated[type] = now;
+			if (credit < this.typeInterval)
+			{
+				this.typeCredit[type] = credit;
+				this.typeSuppressed++;
+				return false;
+			}
+			this.typeCredit[type] = credit - this.typeInterval;
+		}
+
+		if (slot >= 0)
+		{ this.sourceCredit[slot] -= this.sourceInterval; }
+		return true;
+	}
+
+	/**
+	 * Find the slot holding a source's bucket, claiming a full bucket for
+	 * the source if it has none. Must be called while synchronized.
+	 */
+	private int sourceSlot(int source, long now)
+	{
+		int mask = SOURCES - 1;
+		int h = source * 0x9e3779b9;
+		int home = (h ^ (h >>> 16)) & mask;
+		int victim = home;
+		for (int i = 0; i < MAX_PROBES; i++)
+		{
+			int slot = (home + i) & mask;
+			int key = this.sourceKeys[slot];
+			if (key == source && key != 0)
+			{ return slot; }
+			if (0 == key)
+			{
+				victim = slot;
+				break;
+			}
+			if (this.sourceUpdated[slot] - this.sourceUpdated[victim] < 0)
+			{ victim = slot; }
+		}
+		this.sourceKeys[victim] = source;
+		this.sourceCredit[victim] = this.sourceBurst;
+		this.sourceUpdated[victim] = now;
+		return victim;
+	}
+
+	/**
+	 * @return number of messages suppressed by the limit for their type
+	 */
+	public synchronized long getTypeSuppressed()
+	{ return this.typeSuppressed; }
+
+	/**
+	 * @return number of messages suppressed by the limit for their source
+	 */
+	public synchronized long getSourceSuppressed()
+	{ return this.sourceSuppressed; }
+
+	public String toString()
+	{
+		return String.format("icmp limit: %d suppressed by type, %d by source",
+				this.getTypeSuppressed(), this.getSourceSuppressed());
+	}
+}
@@ -0,0 +1,130 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Collection;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Decides whether an IPv4 packet is addressed to the router itself, should
+ * be forwarded, or should be dropped, from its destination address alone.
+ *
+ * The router's own addresses, the directed broadcast address of each of its
+ * subnets, the limited broadcast address and the multicast groups it has
+ * joined are kept in an open-addressing set of primitive ints, so a
+ * destination is classified with a single lookup. The classifier is
+ * immutable; the router builds a new one whenever its interfaces or groups
+ * change.
+ */
+public class LocalClassifier
+{
+	/** The packet should be forwarded */
+	public static final byte FORWARD = 0;
+
+	/** The packet is addressed to one of the router's interfaces */
+	public static final byte LOCAL = 1;
+
+	/** The packet is broadcast on one of the router's subnets */
+	public static final byte BROADCAST = 2;
+
+	/** The packet is sent to a multicast group the router has joined */
+	public static final byte MULTICAST = 3;
+
+	/** The packet can be neither delivered nor forwarded: it is sent to an
+	 *  unspecified, reserved or multicast address the router has not
+	 *  joined */
+	public static final byte DROP = 4;
+
+	/** Limited broadcast address, 255.255.255.255 */
+	private static final int LIMITED_BROADCAST = 0xffffffff;
+
+	/** Address for each slot; 0 if the slot is empty */
+	private final int[] keys;
+
+	/** Classification of the address in each slot */
+	private final byte[] kinds;
+
+	/** Mask applied to a hash to select a slot */
+	private final int mask;
+
+	/**
+	 * Build a classifier for a router's addresses.
+	 * @param ifaces the router's interfaces; those with no IP address yet
+	 *        are ignored
+	 * @param groups multicast groups the router has joined
+	 */
+	public LocalClassifier(Collection<Iface> ifaces, int... groups)
+	{
+		// Keep the set at most a quarter full, so lookups rarely probe
+		int count = 2 * ifaces.size() + groups.length + 1;
+		int size = Integer.highestOneBit(Math.max(count * 4, 8) - 1) << 1;
+		this.keys = new int[size];
+		this.kinds = new byte[size];
+		this.mask = size - 1;
+
+		this.add(LIMITED_BROADCAST, BROADCAST);
+		for (Iface iface : ifaces)
+		{
+			// Point-to-point (/31) and host (/32) subnets have no broadcast
+			// address
+			int subnetMask = iface.getSubnetMask();
+			if (iface.getIpAddress() != 0
+					&& Integer.compareUnsigned(~subnetMask, 1) > 0)
+			{ this.add(iface.getIpAddress() | ~subnetMask, BROADCAST); }
+		}
+		for (int group : groups)
+		{ this.add(group, MULTICAST); }
+
+		// An interface's own address takes precedence over anything else
+		for (Iface iface : ifaces)
+		{
+			if (iface.getIpAddress() != 0)
+			{ this.add(iface.getIpAddress(), LOCAL); }
+		}
+	}
+
+	/**
+	 * Classify a packet by its destination address.
+	 * @param ip destination IP address
+	 * @return {@link #LOCAL}, {@link #BROADCAST} or {@link #MULTICAST} if
+	 *         the router should handle the packet itself, {@link #DROP} if
+	 *         it should be dropped, otherwise {@link #FORWARD}
+	 */
+	public byte classify(int ip)
+	{
+		for (int slot = hash(ip) & this.mask; ; slot = (slot + 1) & this.mask)
+		{
+			int key = this.keys[slot];
+			if (key == ip && key != 0)
+			{ return this.kinds[slot]; }
+			if (0 == key)
+			{ break; }
+		}
+
+		// Multicast (224.0.0.0/4) and reserved (240.0.0.0/4) addresses
+		if (0 == ip || (ip >>> 28) >= 0xe)
+		{ return DROP; }
+		return FORWARD;
+	}
+
+	/**
+	 * Add an address, replacing its classification if it is already in the
+	 * set.
+	 */
+	private void add(int ip, byte kind)
+	{
+		int slot = hash(ip) & this.mask;
+		while (this.keys[slot] != 0 && this.keys[slot] != ip)
+		{ slot = (slot + 1) & this.mask; }
+		this.keys[slot] = ip;
+		this.kinds[slot] = kind;
+	}
+
+	/**
+	 * @return a well-mixed hash of an IP address
+	 */
+	private static int hash(int ip)
+	{
+		int h = ip * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+}
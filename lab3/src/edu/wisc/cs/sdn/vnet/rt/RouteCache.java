@@ -0,0 +1,219 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * A bounded cache of forwarding decisions, mapping a destination IP address
+ * to the route entry that matches it and the MAC address of the next hop.
+ * Entries record the versions of the route table and ARP cache they were
+ * resolved against, and are ignored once either has changed, so the cache
+ * never needs to be flushed explicitly.
+ *
+ * The cache is an open-addressing table keyed on primitive ints. A slot is
+ * replaced as a whole, so concurrent readers see either the old or the new
+ * entry for a slot.
+ */
+public class RouteCache
+{
+	/** Default number of slots in the cache */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** Number of slots examined before an entry is evicted */
+	private static final int MAX_PROBES = 8;
+
+	/**
+	 * A cached forwarding decision for a destination IP address.
+	 */
+	public static class Entry
+	{
+		/** Destination IP address */
+		private final int ip;
+
+		/** Route entry matching the destination; null if none exists */
+		private final RouteEntry route;
+
+		/** IP address of the next hop */
+		private final int nextHop;
+
+		/** ARP cache entry for the next hop; null if it is not in the ARP
+		 *  cache */
+		private final ArpEntry arpEntry;
+
+		/** Route table version the entry was resolved against */
+		private final long routeVersion;
+
+		/** ARP cache version the entry was resolved against */
+		private final long arpVersion;
+
+		private Entry(int ip, RouteEntry route, int nextHop, ArpEntry arpEntry,
+				long routeVersion, long arpVersion)
+		{
+			this.ip = ip;
+			this.route = route;
+			this.nextHop = nextHop;
+			this.arpEntry = arpEntry;
+			this.routeVersion = routeVersion;
+			this.arpVersion = arpVersion;
+		}
+
+		/**
+		 * @return route entry matching the destination; null if none exists
+		 */
+		public RouteEntry getRoute()
+		{ return this.route; }
+
+		/**
+		 * @return IP address of the next hop: the route's gateway, or the
+		 *         destination itself if the route has no gateway
+		 */
+		public int getNextHop()
+		{ return this.nextHop; }
+
+		/**
+		 * @return MAC address of the next hop; null if it is not in the ARP
+		 *         cache
+		 */
+		public MACAddress getMac()
+		{ return (null == this.arpEntry) ? null : this.arpEntry.getMac(); }
+
+		/**
+		 * @return ARP cache entry for the next hop; null if it is not in the
+		 *         ARP cache
+		 */
+		public ArpEntry getArpEntry()
+		{ return this.arpEntry; }
+	}
+
+	/** Route table the cache resolves routes from */
+	private RouteTable routeTable;
+
+	/** ARP cache the cache resolves next-hop MAC addresses from */
+	private ArpCache arpCache;
+
+	/** Destination IP address for each slot; 0 if the slot is empty */
+	private int[] keys;
+
+	/** Cached entry for each slot */
+	private Entry[] entries;
+
+	/** Mask applied to a hash to select a slot */
+	private int mask;
+
+	/** Number of lookups answered from the cache */
+	private LongAdder hits;
+
+	/** Number of lookups that had to be resolved */
+	private LongAdder misses;
+
+	/**
+	 * Create an empty route cache.
+	 * @param routeTable route table to resolve routes from
+	 * @param arpCache ARP cache to resolve next-hop MAC addresses from
+	 * @param capacity number of slots in the cache; rounded up to a power
+	 *        of two
+	 */
+	public RouteCache(RouteTable routeTable, ArpCache arpCache, int capacity)
+	{
+		this.routeTable = routeTable;
+		this.arpCache = arpCache;
+		int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+		this.keys = new int[size];
+		this.entries = new Entry[size];
+		this.mask = size - 1;
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	/**
+	 * Find the forwarding decision for a destination, resolving it from the
+	 * route table and ARP cache if it is not cached or is out of date.
+	 * @param ip destination IP address
+	 * @return forwarding decision for the destination
+	 */
+	public Entry lookup(int ip)
+	{
+		long routeVersion = this.routeTable.getVersion();
+		long arpVersion = this.arpCache.getVersion();
+
+		int home = hash(ip) & this.mask;
+		int victim = home;
+		for (int i = 0; i < MAX_PROBES; i++)
+		{
+			int slot = (home + i) & this.mask;
+			int key = this.keys[slot];
+			if (key == ip)
+			{
+				Entry entry = this.entries[slot];
+				if (entry != null && entry.ip == ip
+						&& entry.routeVersion == routeVersion
+						&& entry.arpVersion == arpVersion)
+				{
+					this.hits.increment();
+					return entry;
+				}
+				victim = slot;
+				break;
+			}
+			if (0 == key)
+			{
+				victim = slot;
+				break;
+			}
+		}
+
+		this.misses.increment();
+		Entry entry = this.resolve(ip, routeVersion, arpVersion);
+		if (ip != 0)
+		{
+			this.entries[victim] = entry;
+			this.keys[victim] = ip;
+		}
+		return entry;
+	}
+
+	/**
+	 * @return number of lookups answered from the cache
+	 */
+	public long getHits()
+	{ return this.hits.sum(); }
+
+	/**
+	 * @return number of lookups that had to be resolved from the route table
+	 *         and ARP cache
+	 */
+	public long getMisses()
+	{ return this.misses.sum(); }
+
+	/**
+	 * Resolve a forwarding decision from the route table and ARP cache.
+	 */
+	private Entry resolve(int ip, long routeVersion, long arpVersion)
+	{
+		RouteEntry route = this.routeTable.lookup(ip);
+		if (null == route)
+		{ return new Entry(ip, null, 0, null, routeVersion, arpVersion); }
+
+		int nextHop = route.getGatewayAddress();
+		if (0 == nextHop)
+		{ nextHop = ip; }
+		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
+		return new Entry(ip, route, nextHop, arpEntry, routeVersion, arpVersion);
+	}
+
+	/**
+	 * @return a well-mixed hash of an IP address
+	 */
+	private static int hash(int ip)
+	{
+		int h = ip * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	public String toString()
+	{
+		return String.format("route cache: %d hits, %d misses",
+				this.getHits(), this.getMisses());
+	}
+}
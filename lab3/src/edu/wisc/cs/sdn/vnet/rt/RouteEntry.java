@@ -25,8 +25,9 @@ public class RouteEntry
 	/** the distance to the network */
 	private int distance;
 
-	/** last time update */
-	private long timeStamp;
+	/** last time update; refreshed in place, so readers of a route table
+	 *  snapshot see the latest value */
+	private volatile long timeStamp;
 	/**
 	 * Create a new route table entry.
 	 * @param destinationAddress destination IP address
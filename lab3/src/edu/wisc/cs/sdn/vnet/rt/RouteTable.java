@@ -4,7 +4,6 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -15,18 +14,71 @@ import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
  * Route table for a router.
+ * 
+ * Lookups read an immutable snapshot of the table through a volatile
+ * reference and never block. Writers serialize on a lock, build a new
+ * snapshot, and publish it with a single write, so forwarding is never held
+ * up by route churn.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable 
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries; 
+	/** Current snapshot of the entries in the route table, indexed by
+	 *  destination prefix for longest prefix matching */
+	private volatile RouteTrie trie;
+	
+	/** DIR-24-8 forwarding table used for lookups; null if lookups should
+	 *  use the trie */
+	private volatile Dir248Table flatTable;
+	
+	/** Lock held while modifying the route table */
+	private final Object writeLock;
 	
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{
+		this.trie = RouteTrie.EMPTY;
+		this.flatTable = null;
+		this.writeLock = new Object();
+	}
+	
+	/**
+	 * Enable or disable the DIR-24-8 forwarding table. When enabled, lookups
+	 * take at most two array accesses, at the cost of a 64MB table.
+	 * @param enable true if lookups should use the DIR-24-8 table
+	 */
+	public void setFlatLookup(boolean enable)
+	{
+		synchronized(this.writeLock)
+		{
+			if (!enable)
+			{
+				this.flatTable = null;
+				return;
+			}
+			if (this.flatTable != null)
+			{ return; }
+			Dir248Table table = new Dir248Table();
+			for (RouteEntry entry : this.trie.entries())
+			{ table.insert(entry); }
+			this.flatTable = table;
+		}
+	}
+	
+	/**
+	 * @return true if lookups use the DIR-24-8 forwarding table
+	 */
+	public boolean isFlatLookup()
+	{ return this.flatTable != null; }
+	
+	/**
+	 * @return version of the current snapshot of the route table; the
+	 *         version changes whenever an entry is added, removed or updated
+	 */
+	public long getVersion()
+	{ return this.trie.getVersion(); }
 	
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -35,29 +87,18 @@ public class RouteTable
 	 */
 	public RouteEntry lookup(int ip)
 	{
-		synchronized(this.entries)
-        {
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
-			RouteEntry match = null;
-			int entrySubnet;
-			int ipMaskedSubnent;
-			// travel all entries in the table, find the best match 
-			for (RouteEntry entry : entries) {
-				// do and calculation,  the destination ip and entry ip are in the same subnet
-				ipMaskedSubnent = ip & entry.getMaskAddress();
-				entrySubnet = entry.getDestinationAddress() & entry.getMaskAddress();
-				// when they are in the same subnet, and 
-				// System.out.println(ip);
-				if (ipMaskedSubnent == entrySubnet && 
-				(match == null || entry.getMaskAddress() > match.getMaskAddress())) {
-					match = entry;
-				}
-			}
-			return match;
-			
-			/*****************************************************************/
-        }
+		RouteTrie snapshot = this.trie;
+		Dir248Table table = this.flatTable;
+		if (table != null)
+		{
+			// Fall back to the snapshot if the table handed back an entry
+			// that was recycled while we were reading it
+			RouteEntry entry = table.lookup(ip);
+			if (entry != null && 0 == ((ip ^ entry.getDestinationAddress()) 
+					& entry.getMaskAddress()))
+			{ return entry; }
+		}
+		return snapshot.lookup(ip);
 	}
 	
 	/**
@@ -162,10 +203,7 @@ public class RouteTable
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
 	{
 		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
-        synchronized(this.entries)
-        { 
-            this.entries.add(entry);
-        }
+        this.add(entry);
 	}
 	
 	/**
@@ -181,10 +219,23 @@ public class RouteTable
 		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
 		entry.setDistance(distance);
 		entry.setTimeStamp(System.currentTimeMillis());
-        synchronized(this.entries)
-        { 
-            this.entries.add(entry);
-        }
+        this.add(entry);
+	}
+	
+	/**
+	 * Add an entry to the route table, replacing any entry with the same
+	 * destination and subnet mask.
+	 * @param entry the entry to add
+	 */
+	private void add(RouteEntry entry)
+	{
+		synchronized(this.writeLock)
+		{
+			if (this.flatTable != null)
+			{ this.flatTable.insert(entry); }
+			this.trie = this.trie.put(entry.getDestinationAddress(),
+					RouteTrie.prefixLength(entry.getMaskAddress()), entry);
+		}
 	}
 	
 	/**
@@ -195,16 +246,60 @@ public class RouteTable
 	 */
 	public boolean remove(int dstIp, int maskIp)
 	{ 
-        synchronized(this.entries)
+        synchronized(this.writeLock)
         {
-            RouteEntry entry = this.find(dstIp, maskIp);
-            if (null == entry)
+            RouteTrie snapshot = this.trie;
+            RouteTrie updated = this.removeFrom(snapshot, dstIp, maskIp);
+            if (updated == snapshot)
             { return false; }
-            this.entries.remove(entry);
+            this.trie = updated;
         }
         return true;
     }
 	
+	/**
+	 * Remove a dynamic entry if it has not been refreshed recently. Entries
+	 * learned from directly connected subnets (distance 0) never expire.
+	 * @param dstIp destination IP of the entry
+	 * @param maskIp subnet mask of the entry
+	 * @param timeout age (in milliseconds) after which the entry expires
+	 * @return milliseconds until the entry expires; 0 if it was removed, 
+	 *         never expires, or is not in the table
+	 */
+	public long expire(int dstIp, int maskIp, long timeout)
+	{
+		synchronized(this.writeLock)
+		{
+			RouteEntry entry = this.find(dstIp, maskIp);
+			if (null == entry || 0 == entry.getDistance())
+			{ return 0; }
+			long remaining = entry.getTimeStamp() + timeout 
+					- System.currentTimeMillis();
+			if (remaining > 0)
+			{ return remaining; }
+			this.trie = this.removeFrom(this.trie, dstIp, maskIp);
+			return 0;
+		}
+	}
+	
+	/**
+	 * Remove an entry from a snapshot of the route table and from the
+	 * DIR-24-8 table; the caller must hold the write lock.
+	 * @return the snapshot without the entry; the same snapshot if no 
+	 *         matching entry was found
+	 */
+	private RouteTrie removeFrom(RouteTrie snapshot, int dstIp, int maskIp)
+	{
+		int length = RouteTrie.prefixLength(maskIp);
+		RouteEntry entry = snapshot.find(dstIp, length);
+		if (null == entry)
+		{ return snapshot; }
+		RouteTrie updated = snapshot.remove(dstIp, length);
+		if (this.flatTable != null)
+		{ this.flatTable.remove(entry, updated.lookup(dstIp, length - 1)); }
+		return updated;
+	}
+	
 	/**
 	 * Update an entry in the route table.
 	 * @param dstIP destination IP of the entry to update
@@ -216,14 +311,12 @@ public class RouteTable
 	public boolean update(int dstIp, int maskIp, int gwIp, 
             Iface iface)
 	{
-        synchronized(this.entries)
+        synchronized(this.writeLock)
         {
             RouteEntry entry = this.find(dstIp, maskIp);
             if (null == entry)
             { return false; }
-            entry.setGatewayAddress(gwIp);
-            entry.setInterface(iface);
-			entry.setTimeStamp(System.currentTimeMillis());
+            this.replace(entry, gwIp, iface, entry.getDistance());
         }
         return true;
 	}
@@ -240,18 +333,29 @@ public class RouteTable
 	public boolean update(int dstIp, int maskIp, int gwIp, 
             Iface iface, int distance)
 	{
-        synchronized(this.entries)
+        synchronized(this.writeLock)
         {
             RouteEntry entry = this.find(dstIp, maskIp);
             if (null == entry)
             { return false; }
-            entry.setGatewayAddress(gwIp);
-            entry.setInterface(iface);
-			entry.setDistance(distance);
-			entry.setTimeStamp(System.currentTimeMillis());
+            this.replace(entry, gwIp, iface, distance);
         }
         return true;
 	}
+	
+	/**
+	 * Publish a copy of an entry with a new gateway, interface and distance;
+	 * entries in a published snapshot are never modified, other than to
+	 * refresh their time stamp. The caller must hold the write lock.
+	 */
+	private void replace(RouteEntry entry, int gwIp, Iface iface, int distance)
+	{
+		RouteEntry updated = new RouteEntry(entry.getDestinationAddress(), gwIp,
+				entry.getMaskAddress(), iface);
+		updated.setDistance(distance);
+		updated.setTimeStamp(System.currentTimeMillis());
+		this.add(updated);
+	}
 
     /**
 	 * Find an entry in the route table.
@@ -260,34 +364,25 @@ public class RouteTable
      * @return a matching entry if one was found, otherwise null
 	 */
     private RouteEntry find(int dstIp, int maskIp)
-    {
-        synchronized(this.entries)
-        {
-            for (RouteEntry entry : this.entries)
-            {
-                if ((entry.getDestinationAddress() == dstIp)
-                    && (entry.getMaskAddress() == maskIp)) 
-                { return entry; }
-            }
-        }
-        return null;
-    }
+    { return this.trie.find(dstIp, RouteTrie.prefixLength(maskIp)); }
 	
 	public String toString()
 	{
-        synchronized(this.entries)
-        { 
-            if (0 == this.entries.size())
-            { return " WARNING: route table empty"; }
-            
-            String result = "Destination\tGateway\t\tMask\t\tIface\n";
-            for (RouteEntry entry : entries)
-            { result += entry.toString()+"\n"; }
-		    return result;
-        }
+        List<RouteEntry> entries = this.trie.entries();
+        if (0 == entries.size())
+        { return " WARNING: route table empty"; }
+        
+        String result = "Destination\tGateway\t\tMask\t\tIface\n";
+        for (RouteEntry entry : entries)
+        { result += entry.toString()+"\n"; }
+	    return result;
 	}
 
+	/**
+	 * @return the entries in the current snapshot of the route table; the 
+	 *         list does not change when the route table is modified
+	 */
 	public List<RouteEntry> getRouteEntries() {
-		return this.entries;
+		return this.trie.entries();
 	}
 }
@@ -0,0 +1,287 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable, path-compressed binary (Patricia) trie of route entries
+ * keyed on destination prefix and prefix length. Inserts, removals and
+ * lookups all visit at most one node per prefix bit, so every operation is
+ * bounded by 32 steps regardless of how many routes are stored.
+ *
+ * Inserts and removals copy only the nodes on the path to the changed
+ * prefix and return a new trie, leaving this one untouched. A trie can
+ * therefore be read by any number of threads without locking while a
+ * writer builds its successor.
+ */
+class RouteTrie
+{
+	/** A trie with no entries */
+	public static final RouteTrie EMPTY = new RouteTrie(null, 0, 0);
+
+	/** A node in the trie; branch-only nodes have a null entry */
+	private static class Node
+	{
+		/** Prefix bits (host bits are zero) */
+		final int prefix;
+
+		/** Number of significant bits in the prefix */
+		final int length;
+
+		/** Route entry for this prefix; null for a pure branching node */
+		final RouteEntry entry;
+
+		/** Children selected by the bit immediately after the prefix */
+		final Node zero;
+		final Node one;
+
+		Node(int prefix, int length, RouteEntry entry, Node zero, Node one)
+		{
+			this.prefix = prefix;
+			this.length = length;
+			this.entry = entry;
+			this.zero = zero;
+			this.one = one;
+		}
+
+		Node child(int dir)
+		{ return (0 == dir) ? this.zero : this.one; }
+	}
+
+	/** Root of the trie; null if the trie is empty */
+	private final Node root;
+
+	/** Number of route entries stored in the trie */
+	private final int size;
+
+	/** Number of modifications made to reach this trie from an empty one */
+	private final long version;
+
+	private RouteTrie(Node root, int size, long version)
+	{
+		this.root = root;
+		this.size = size;
+		this.version = version;
+	}
+
+	/**
+	 * Convert a subnet mask into a prefix length.
+	 * @param maskIp subnet mask
+	 * @return number of leading one bits in the mask
+	 */
+	static int prefixLength(int maskIp)
+	{ return Integer.bitCount(maskIp); }
+
+	/**
+	 * Build a subnet mask for a prefix length.
+	 * @param length prefix length, between 0 and 32
+	 * @return subnet mask with the given number of leading one bits
+	 */
+	static int mask(int length)
+	{ return (0 == length) ? 0 : (-1 << (32 - length)); }
+
+	/**
+	 * @return the bit of an address at a given position, counting from the
+	 *         most significant bit
+	 */
+	private static int bit(int address, int position)
+	{ return (address >>> (31 - position)) & 1; }
+
+	/**
+	 * @return the number of leading bits shared by two prefixes, capped at
+	 *         the shorter of the two prefix lengths
+	 */
+	private static int commonLength(int a, int aLength, int b, int bLength)
+	{
+		int common = Integer.numberOfLeadingZeros(a ^ b);
+		return Math.min(common, Math.min(aLength, bLength));
+	}
+
+	/**
+	 * @return the number of route entries in the trie
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * @return number of modifications made to reach this trie; later tries
+	 *         always have larger versions
+	 */
+	public long getVersion()
+	{ return this.version; }
+
+	/**
+	 * Find the route entry with the longest prefix matching an address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip)
+	{ return this.lookup(ip, 32); }
+
+	/**
+	 * Find the route entry with the longest prefix matching an address,
+	 * considering only prefixes no longer than a given length.
+	 * @param ip IP address
+	 * @param maxLength longest prefix length to consider
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip, int maxLength)
+	{
+		RouteEntry match = null;
+		Node node = this.root;
+		while (node != null && node.length <= maxLength)
+		{
+			if (((ip ^ node.prefix) & mask(node.length)) != 0)
+			{ break; }
+			if (node.entry != null)
+			{ match = node.entry; }
+			if (32 == node.length)
+			{ break; }
+			node = node.child(bit(ip, node.length));
+		}
+		return match;
+	}
+
+	/**
+	 * Find the route entry stored for an exact prefix.
+	 * @param prefix destination prefix
+	 * @param length prefix length
+	 * @return the route entry for the prefix, null if none exists
+	 */
+	public RouteEntry find(int prefix, int length)
+	{
+		prefix &= mask(length);
+		Node node = this.root;
+		while (node != null && node.length <= length)
+		{
+			if (((prefix ^ node.prefix) & mask(node.length)) != 0)
+			{ return null; }
+			if (node.length == length)
+			{ return node.entry; }
+			node = node.child(bit(prefix, node.length));
+		}
+		return null;
+	}
+
+	/**
+	 * Store a route entry for a prefix, replacing any existing entry.
+	 * @param prefix destination prefix
+	 * @param length prefix length
+	 * @param entry route entry to store
+	 * @return a trie containing the entry
+	 */
+	public RouteTrie put(int prefix, int length, RouteEntry entry)
+	{
+		prefix &= mask(length);
+		int size = this.size + ((null == this.find(prefix, length)) ? 1 : 0);
+		return new RouteTrie(put(this.root, prefix, length, entry), size,
+				this.version + 1);
+	}
+
+	/**
+	 * Remove the route entry stored for an exact prefix.
+	 * @param prefix destination prefix
+	 * @param length prefix length
+	 * @return a trie without the entry; this trie if no entry was stored for
+	 *         the prefix
+	 */
+	public RouteTrie remove(int prefix, int length)
+	{
+		prefix &= mask(length);
+		if (null == this.find(prefix, length))
+		{ return this; }
+		return new RouteTrie(remove(this.root, prefix, length), this.size - 1,
+				this.version + 1);
+	}
+
+	/**
+	 * @return all route entries in the trie, ordered by prefix
+	 */
+	public List<RouteEntry> entries()
+	{
+		List<RouteEntry> entries = new ArrayList<RouteEntry>(this.size);
+		collect(this.root, entries);
+		return Collections.unmodifiableList(entries);
+	}
+
+	private static void collect(Node node, List<RouteEntry> entries)
+	{
+		if (null == node)
+		{ return; }
+		if (node.entry != null)
+		{ entries.add(node.entry); }
+		collect(node.zero, entries);
+		collect(node.one, entries);
+	}
+
+	private static Node put(Node node, int prefix, int length, RouteEntry entry)
+	{
+		if (null == node)
+		{ return new Node(prefix, length, entry, null, null); }
+
+		int common = commonLength(prefix, length, node.prefix, node.length);
+		if (common == node.length && common == length)
+		{
+			// Same prefix; replace the entry
+			return new Node(node.prefix, node.length, entry, node.zero, node.one);
+		}
+
+		if (common == node.length)
+		{
+			// Existing node covers the new prefix; descend
+			if (0 == bit(prefix, node.length))
+			{
+				return new Node(node.prefix, node.length, node.entry,
+						put(node.zero, prefix, length, entry), node.one);
+			}
+			return new Node(node.prefix, node.length, node.entry,
+					node.zero, put(node.one, prefix, length, entry));
+		}
+
+		if (common == length)
+		{
+			// New prefix covers the existing node; insert above it
+			if (0 == bit(node.prefix, length))
+			{ return new Node(prefix, length, entry, node, null); }
+			return new Node(prefix, length, entry, null, node);
+		}
+
+		// Prefixes diverge; add a branching node where they split
+		Node added = new Node(prefix, length, entry, null, null);
+		if (0 == bit(prefix, common))
+		{ return new Node(prefix & mask(common), common, null, added, node); }
+		return new Node(prefix & mask(common), common, null, node, added);
+	}
+
+	private static Node remove(Node node, int prefix, int length)
+	{
+		if (node.length == length)
+		{ return compact(node.prefix, node.length, null, node.zero, node.one); }
+
+		if (0 == bit(prefix, node.length))
+		{
+			return compact(node.prefix, node.length, node.entry,
+					remove(node.zero, prefix, length), node.one);
+		}
+		return compact(node.prefix, node.length, node.entry,
+				node.zero, remove(node.one, prefix, length));
+	}
+
+	/**
+	 * Build a node, dropping it in favour of its child if it neither carries
+	 * an entry nor branches.
+	 */
+	private static Node compact(int prefix, int length, RouteEntry entry,
+			Node zero, Node one)
+	{
+		if (null == entry)
+		{
+			if (null == zero)
+			{ return one; }
+			if (null == one)
+			{ return zero; }
+		}
+		return new Node(prefix, length, entry, zero, one);
+	}
+}
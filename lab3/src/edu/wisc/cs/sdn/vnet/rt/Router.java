@@ -3,9 +3,12 @@ package edu.wisc.cs.sdn.vnet.rt;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Logger;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
 import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.IPv4View;
 import net.floodlightcontroller.packet.MACAddress;
 import net.floodlightcontroller.packet.RIPv2;
 import net.floodlightcontroller.packet.RIPv2Entry;
@@ -26,6 +29,12 @@ public class Router extends Device
 	 *  final static field
 	 */
 	private final static int ICMP_PADDING = 4;
+	private final static int RIP_MULTICAST = IPv4.toIPv4Address("224.0.0.9");
+	private final static MACAddress BROADCAST_MAC = MACAddress.valueOf("FF:FF:FF:FF:FF:FF");
+	// age after which a RIP route is dropped, and time between broadcasts
+	private final static int ROUTE_TIMEOUT = 30*1000;
+	private final static int BROADCAST_INTERVAL = 10*1000;
+	private final static Logger log = Logger.getLogger(Router.class);
 	/** Routing table for the router */
 	private RouteTable routeTable;
 	
@@ -35,11 +44,25 @@ public class Router extends Device
 	/** ARP cache for the router */
 	private ArpQueue arpQueue;
 	
+	/** Cache of forwarding decisions for recently seen destinations */
+	private RouteCache routeCache;
+	
+	/** Limits on how often ICMP error messages are sent */
+	private IcmpRateLimiter icmpLimiter;
+	
+	/** Classifier of destination addresses the router handles itself;
+	 *  rebuilt whenever the interfaces or groups joined change */
+	private volatile LocalClassifier localClassifier;
+	
 	/**  Dynamic Route */
 	private boolean isDynamicRoute;
 
 	/** the table to store the request recieved */
 	private RipRequestTable ripRequestTable;
+
+	/** View reused for the IPv4 header of every raw frame; one per thread,
+	 *  since frames may be handled by several worker threads at once */
+	private ThreadLocal<IPv4View> ipView;
 	
 	/**
 	 * Creates a router for a specific host.
@@ -49,9 +72,14 @@ public class Router extends Device
 	{
 		super(host,logfile);
 		this.routeTable = new RouteTable();
-		this.arpCache = new ArpCache();
+		this.arpCache = new ArpCache(getTimers(), this::genARPRequest);
 		this.arpQueue = new ArpQueue(this);
+		this.routeCache = new RouteCache(this.routeTable, this.arpCache,
+				RouteCache.DEFAULT_CAPACITY);
+		this.icmpLimiter = new IcmpRateLimiter();
+		this.localClassifier = new LocalClassifier(this.interfaces.values());
 		this.isDynamicRoute = false;
+		this.ipView = ThreadLocal.withInitial(IPv4View::new);
 	}
 	
 	/**
@@ -68,6 +96,52 @@ public class Router extends Device
 		return this.arpCache;
 	}
 	
+	/**
+	 * @return cache of forwarding decisions for recently seen destinations
+	 */
+	public RouteCache getRouteCache()
+	{ return this.routeCache; }
+	
+	/**
+	 * @return queue of packets waiting for ARP replies
+	 */
+	public ArpQueue getArpQueue()
+	{ return this.arpQueue; }
+	
+	/**
+	 * @return limits on how often ICMP error messages are sent
+	 */
+	public IcmpRateLimiter getIcmpLimiter()
+	{ return this.icmpLimiter; }
+	
+	/**
+	 * Rebuild the classifier of local addresses from the interfaces, and
+	 * the RIP group if dynamic routing is on.
+	 */
+	@Override
+	public void interfacesChanged()
+	{
+		if (this.isDynamicRoute)
+		{
+			this.localClassifier = new LocalClassifier(
+					this.interfaces.values(), RIP_MULTICAST);
+		}
+		else
+		{ this.localClassifier = new LocalClassifier(this.interfaces.values()); }
+	}
+	
+	/**
+	 * Log how many packets waited for ARP and how many ICMP messages were
+	 * suppressed, then stop the router.
+	 */
+	@Override
+	public void destroy()
+	{
+		log.info(() -> this.arpQueue.toString());
+		log.info(() -> this.icmpLimiter.toString());
+		super.destroy();
+	}
+	
 	/**
 	 * Load a new routing table from a file.
 	 * @param routeTableFile the name of the file containing the routing table
@@ -81,10 +155,10 @@ public class Router extends Device
 			System.exit(1);
 		}
 		
-		System.out.println("Loaded static route table");
-		System.out.println("-------------------------------------------------");
-		System.out.print(this.routeTable.toString());
-		System.out.println("-------------------------------------------------");
+		log.info(() -> "Loaded static route table\n"
+				+ "-------------------------------------------------\n"
+				+ this.routeTable.toString()
+				+ "-------------------------------------------------");
 	}
 	
 	/**
@@ -100,10 +174,10 @@ public class Router extends Device
 			System.exit(1);
 		}
 		
-		System.out.println("Loaded static ARP cache");
-		System.out.println("----------------------------------");
-		System.out.print(this.arpCache.toString());
-		System.out.println("----------------------------------");
+		log.info(() -> "Loaded static ARP cache\n"
+				+ "----------------------------------\n"
+				+ this.arpCache.toString()
+				+ "----------------------------------");
 	}
 
 	/**
@@ -113,7 +187,7 @@ public class Router extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
+		log.debug(() -> "*** -> Received packet: " +
                 etherPacket.toString().replace("\n", "\n\t"));
 		
 		/********************************************************************/
@@ -135,6 +209,43 @@ public class Router extends Device
 		/********************************************************************/
 	}
 
+	/**
+	 * Forward a raw frame in place when it is plain transit IPv4 traffic
+	 * whose next hop is already resolved; anything that needs an ICMP
+	 * message, an ARP request, RIP handling or local delivery is left to
+	 * handlePacket. The frame is not modified unless it is forwarded.
+	 * @param frame view of the Ethernet frame that was received
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was forwarded
+	 */
+	@Override
+	public boolean handleFrame(EthernetView frame, Iface inIface) {
+		if (!frame.isValid() || frame.getEtherType() != Ethernet.TYPE_IPv4) {
+			return false;
+		}
+		IPv4View ip = frame.getIPv4(this.ipView.get());
+		if (!ip.isValid() || !ip.isChecksumValid() || ip.getTtl() <= 1) {
+			return false;
+		}
+		int dst = ip.getDestinationAddress();
+		if (this.localClassifier.classify(dst) != LocalClassifier.FORWARD) {
+			return false;
+		}
+		RouteCache.Entry cached = this.routeCache.lookup(dst);
+		RouteEntry match = cached.getRoute();
+		if (match == null || cached.getMac() == null
+				|| match.getInterface().equals(inIface)) {
+			return false;
+		}
+		Iface outIface = match.getInterface();
+		cached.getArpEntry().markUsed();
+		frame.setSourceMAC(outIface.getMacAddress().toLong());
+		frame.setDestinationMAC(cached.getMac().toLong());
+		ip.decrementTtl();
+		sendFrame(frame, outIface);
+		return true;
+	}
+
 	/**
 	 * handle the ip packet
 	 * @param etherPacket the ethernet packet
@@ -143,41 +254,42 @@ public class Router extends Device
 	public void handleIpPacket(Ethernet etherPacket, Iface inIface) {
 		// check if ipv4 packet
 		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4) {
-			System.out.println("Drop the packet, not ipv4");
+			log.debug("Drop the packet, not ipv4");
 			return;
 		}
 		// get the ipv4 packet 
 		IPv4 ipPacket =(IPv4) etherPacket.getPayload();
-		// do check sum
-		short receivedChecksum = ipPacket.getChecksum();
-		//reset checksum to zero before calculate check sum
-		ipPacket.resetChecksum();
-		// calculate checksum and store in a byte array
-		byte[] serialized = ipPacket.serialize();
-		ipPacket.deserialize(serialized, 0, serialized.length);
-		if (receivedChecksum != ipPacket.getChecksum()) {
-			System.out.println("Drop the packet, checksum");
+		// do check sum, verified over the received header bytes
+		if (!ipPacket.isChecksumValid()) {
+			log.debug("Drop the packet, checksum");
 			return;
 		}
-		// decrement ttl and then check whether greater than 0
-		// ipPacket.setTtl((byte)(1));
-		ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
-		if (ipPacket.getTtl() <= 0) {
-			System.out.println("Drop the packet, ttl=0");
+		// check the ttl before decrementing it, so a time exceeded message
+		// quotes the header as it was received; the checksum is updated
+		// incrementally so it need not be recomputed on send
+		if ((ipPacket.getTtl() & 0xff) <= 1) {
+			log.debug("Drop the packet, ttl=0");
 			forwardICMPPacket(ipPacket, inIface, (byte)11, (byte)0);
 			return;
 		}
-		// reset the check sum after ttl decrement
-		ipPacket.resetChecksum();
+		ipPacket.decrementTtl();
+
+		// find out whether the packet is for the router itself
+		byte kind = this.localClassifier.classify(ipPacket.getDestinationAddress());
+		if (kind == LocalClassifier.FORWARD) {
+			forwardIpPacket(etherPacket, inIface);
+			return;
+		}
 
 		// if the the packet if Rip
 		// System.out.println(isDynamicRoute);
-		if (this.isDynamicRoute && ipPacket.getProtocol() == IPv4.PROTOCOL_UDP && 
-			ipPacket.getDestinationAddress() == IPv4.toIPv4Address("224.0.0.9")) {
+		if (kind == LocalClassifier.MULTICAST && this.isDynamicRoute
+				&& ipPacket.getProtocol() == IPv4.PROTOCOL_UDP && 
+			ipPacket.getDestinationAddress() == RIP_MULTICAST) {
 			UDP udpPacket = (UDP) ipPacket.getPayload();
 			// check which port it is from
 			if (udpPacket.getDestinationPort() == UDP.RIP_PORT) {
-				System.out.println("revcieve a RIP packet");
+				log.debug("revcieve a RIP packet");
 				RIPv2 ripPacket = (RIPv2) udpPacket.getPayload();
 				// check which rip packet
 				switch(ripPacket.getCommand()) {
@@ -194,41 +306,43 @@ public class Router extends Device
 		}
 		
 		
-		// cheak whther dstIP mathces any interface in this device
-		for (Iface  iface : this.interfaces.values()) {
-			if (ipPacket.getDestinationAddress() == iface.getIpAddress()) {
-				System.out.println("Drop the packet, local interface");
-				// if it is a TCP or UDP packet, just send Destination port unreachable
-				if(ipPacket.getProtocol() == IPv4.PROTOCOL_TCP ||
-						ipPacket.getProtocol() == IPv4.PROTOCOL_UDP){
-					System.out.println("Destination port unreachable");
-					forwardICMPPacket(ipPacket, inIface, (byte)3, (byte)3);
-				} else if (ipPacket.getProtocol() == IPv4.PROTOCOL_ICMP) {
-					// if it is an Echo request, send back 
-					ICMP icmpPacket = (ICMP) ipPacket.getPayload();
-					if (icmpPacket.getIcmpType() == ICMP.TYPE_ECHO_REQUEST) {
-						System.out.println("Echo reply");
-						forwardICMPPacket(ipPacket, inIface, (byte)0, (byte)0);
-					}
-				}
-				return;
+		// broadcasts, other multicasts and reserved addresses are neither
+		// answered nor forwarded
+		if (kind != LocalClassifier.LOCAL) {
+			log.debug("Drop the packet, broadcast or multicast");
+			return;
+		}
+
+		// dstIP mathces an interface in this device
+		log.debug("Drop the packet, local interface");
+		// if it is a TCP or UDP packet, just send Destination port unreachable
+		if(ipPacket.getProtocol() == IPv4.PROTOCOL_TCP ||
+				ipPacket.getProtocol() == IPv4.PROTOCOL_UDP){
+			log.debug("Destination port unreachable");
+			forwardICMPPacket(ipPacket, inIface, (byte)3, (byte)3);
+		} else if (ipPacket.getProtocol() == IPv4.PROTOCOL_ICMP) {
+			// if it is an Echo request, send back 
+			ICMP icmpPacket = (ICMP) ipPacket.getPayload();
+			if (icmpPacket.getIcmpType() == ICMP.TYPE_ECHO_REQUEST) {
+				log.debug("Echo reply");
+				forwardICMPPacket(ipPacket, inIface, (byte)0, (byte)0);
 			}
 		}
-		forwardIpPacket(etherPacket, inIface);
 	}
 
 	public void forwardIpPacket (Ethernet etherPacket, Iface inIface) {
 		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4) {
-			System.out.println("Drop the packet, not ipv4");
+			log.debug("Drop the packet, not ipv4");
 			return;
 		}
 		IPv4 ipPacket =(IPv4) etherPacket.getPayload();
-		// find the match entry
-		RouteEntry match = routeTable.lookup(ipPacket.getDestinationAddress());
+		// find the match entry, along with the next hop's MAC address
+		RouteCache.Entry cached = this.routeCache.lookup(ipPacket.getDestinationAddress());
+		RouteEntry match = cached.getRoute();
 		// if there is no match, or the next interface is the come in interface, drop
 		if (match == null ) {
 			// System.out.println(IpPacket.getDestinationAddress());
-			System.out.println("Drop the packet, no match");
+			log.debug("Drop the packet, no match");
 			//Destination net unreachable
 			forwardICMPPacket(ipPacket, inIface, (byte)3, (byte)0);
 			return;
@@ -237,33 +351,29 @@ public class Router extends Device
 		if (match.getInterface().equals(inIface)) {
 			return;
 		}
-		//get the gateway ip adress
-		int gateway = match.getGatewayAddress(); 
-		// if no gateway
-		if (gateway == 0) {
-			System.out.println("no other gateway, use destination");
-			gateway = ipPacket.getDestinationAddress();
-			// set the src mac address
-			// etherPacket.setSourceMACAddress(match.getInterface().getMacAddress().toBytes());
-		} 
+		//get the gateway ip adress, or the destination if there is no gateway
+		int gateway = cached.getNextHop(); 
 		
 		// System.out.println(match.getInterface().getMacAddress());
 		etherPacket.setSourceMACAddress(match.getInterface().getMacAddress().toBytes());
 		// get the dst mac address
-		ArpEntry dstArpEntry = arpCache.lookup(gateway);
+		MACAddress dstMac = cached.getMac();
 		// if not match, return
-		if (dstArpEntry == null) {
-			System.out.println("Drop the packet, no mac address");
+		if (dstMac == null) {
+			log.debug("Drop the packet, no mac address");
 			// Destination host unreachable
 			
 			// do not send ICMP immediately
 			// forwardICMPPacket(ipPacket, inIface, (byte)3, (byte)1);
-			genARPRequest(gateway);
-			this.arpQueue.storePacket(etherPacket, gateway, inIface);
+			// only ask if no request for the gateway is outstanding
+			if (this.arpQueue.storePacket(etherPacket, gateway, inIface, match.getInterface())) {
+				genARPRequest(gateway, match.getInterface());
+			}
 			return;
 		}
 		
-		etherPacket.setDestinationMACAddress(dstArpEntry.getMac().toBytes());
+		cached.getArpEntry().markUsed();
+		etherPacket.setDestinationMACAddress(dstMac.toBytes());
 		
 		sendPacket(etherPacket, match.getInterface());
 
@@ -277,6 +387,11 @@ public class Router extends Device
 	 * @param code the code num
 	 */
 	public void forwardICMPPacket(IPv4 ipPacket, Iface inIface, byte type, byte code) {
+		// check the limits before building anything
+		if (!this.icmpLimiter.allow(type, ipPacket.getSourceAddress())) {
+			log.debug("ICMP message suppressed");
+			return;
+		}
 		Ethernet ether = new Ethernet(); 
 		IPv4 ip = new IPv4();
 		ICMP icmp = new ICMP();
@@ -313,7 +428,7 @@ public class Router extends Device
 			data.setData(ICMPpayload);
 		} else {
 			// when other message
-			System.out.println("ICMP error message");
+			log.debug("ICMP error message");
 			int payload_size = ICMP_PADDING+ipPacket.getHeaderLength()*4+8;
 			byte[] ICMPpayload = new byte[payload_size];
 			byte[] serialized = ipPacket.serialize();
@@ -322,7 +437,7 @@ public class Router extends Device
 			}
 			data.setData(ICMPpayload);
 		}
-		System.out.println("ICMP packet forwarded");
+		log.debug("ICMP packet forwarded");
 		forwardIpPacket(ether, null);
 	}
 
@@ -343,17 +458,17 @@ public class Router extends Device
 		//get patload
 		ARP arpPacket = (ARP)etherPacket.getPayload();
 		if (arpPacket.getOpCode() == ARP.OP_REQUEST) {
-			System.out.println("recieve APR request, generate ARP reply");
+			log.debug("recieve APR request, generate ARP reply");
 			genARPReply(etherPacket, inIface);
 		} else if (arpPacket.getOpCode() == ARP.OP_REPLY){
 			// handle APR reply
-			System.out.println("recieve APR reply, update arp table");
+			log.debug("recieve APR reply, update arp table");
 			int sourceIP = ByteBuffer.wrap(arpPacket.getSenderProtocolAddress()).getInt();
 			byte[] senderMacAddr = arpPacket.getSenderHardwareAddress();
-			arpCache.insert(new MACAddress(senderMacAddr), sourceIP);
+			arpCache.update(new MACAddress(senderMacAddr), sourceIP, inIface);
 			
 			this.arpQueue.handleAPRreply(sourceIP, inIface, senderMacAddr);
-			System.out.println(this.arpCache);
+			log.trace(() -> this.arpCache.toString());
 		}
 		
 
@@ -370,7 +485,7 @@ public class Router extends Device
 		int targetIp = ByteBuffer.wrap(arpReq.getTargetProtocolAddress()).getInt();
 		// drop if target ip if not match
 		if (targetIp != inIface.getIpAddress()) {
-			System.out.println("APR request not equal to interface");
+			log.debug("APR request not equal to interface");
 			return;
 		}
 		Ethernet etherHeader = new Ethernet();
@@ -399,24 +514,42 @@ public class Router extends Device
 
 	/**
 	 * generate ARP request based on the ip
-	 * @param etherPacket
-	 * @param inIface
+	 * @param targetIp
 	 */
 	public void genARPRequest(int targetIp) {
-		String broadcastMacAddr = "FF:FF:FF:FF:FF:FF";
-		byte[] TargetHardwareAddress = {0,0,0,0,0,0};
-		Ethernet etherHeader = new Ethernet();
-		ARP arpHeader=new ARP();
 		// get the route table entry
 		RouteEntry bestMatch = this.routeTable.lookup(targetIp);
 		if (bestMatch == null) {
-			System.out.println("genARPRequest: Fail to get RouteEntry");
+			log.warn("genARPRequest: Fail to get RouteEntry");
+			return;
 		}
-		Iface sendIface = bestMatch.getInterface();
+		genARPRequest(targetIp, bestMatch.getInterface());
+	}
+
+	/**
+	 * generate ARP request for an ip out of a known interface
+	 * @param targetIp
+	 * @param sendIface the interface the route to the ip goes out of
+	 */
+	public void genARPRequest(int targetIp, Iface sendIface) {
+		genARPRequest(targetIp, sendIface, BROADCAST_MAC);
+	}
+
+	/**
+	 * generate ARP request for an ip, sent straight to the mac address it
+	 * is thought to have, to check the mapping is still right
+	 * @param targetIp
+	 * @param sendIface the interface the route to the ip goes out of
+	 * @param dstMac the mac address to send to
+	 */
+	public void genARPRequest(int targetIp, Iface sendIface, MACAddress dstMac) {
+		byte[] TargetHardwareAddress = {0,0,0,0,0,0};
+		Ethernet etherHeader = new Ethernet();
+		ARP arpHeader=new ARP();
 		//set ethernet header
 		etherHeader.setEtherType(Ethernet.TYPE_ARP);
 		etherHeader.setSourceMACAddress(sendIface.getMacAddress().toBytes());
-		etherHeader.setDestinationMACAddress(broadcastMacAddr);
+		etherHeader.setDestinationMACAddress(dstMac.toBytes());
 		//set arpheader
 		arpHeader.setHardwareType(ARP.HW_TYPE_ETHERNET);
 		arpHeader.setProtocolType(ARP.PROTO_TYPE_IP);
@@ -429,7 +562,7 @@ public class Router extends Device
 		arpHeader.setTargetProtocolAddress(targetIp);
 		// set the payload of ethernet
 		etherHeader.setPayload(arpHeader);
-		System.out.println("genARPRequest: send ARP request");
+		log.debug("genARPRequest: send ARP request");
 		sendPacket(etherHeader, sendIface);
 	}
 
@@ -445,27 +578,29 @@ public class Router extends Device
 	public void initRIP() {
 		RipRequestTable reqTable = new RipRequestTable();
 		this.isDynamicRoute = true;
+		// listen to the RIP group
+		interfacesChanged();
 		// load subnet into routetable
 		for (Iface iface : this.interfaces.values()) {
 			int dstIP = iface.getIpAddress() & iface.getSubnetMask();
 			this.routeTable.insert(dstIP, 0, iface.getSubnetMask(), iface, 0);
 		}
 		// send request
+		beginBatch();
 		for (Iface iface : this.interfaces.values()) {
 			genRipReq(iface);
 		}
+		endBatch();
 		// initiate the request list
 		// this.ripRequestTable = new RipRequestTable();
 
-		// initiate a thread to time out and broadcast
-
-		Thread timeManage = new Thread(new tableManage());
-		timeManage.start();
+		// broadcast on the router's timers; routes time out on their own
+		getTimers().schedule(this::periodicBroadcast, BROADCAST_INTERVAL);
 
-		System.out.println("dynamic route table initiate");
-		System.out.println("*********************************************************");
-		System.out.print(this.routeTable.toString());
-		System.out.println("*********************************************************");
+		log.info(() -> "dynamic route table initiate\n"
+				+ "*********************************************************\n"
+				+ this.routeTable.toString()
+				+ "*********************************************************");
 
 	}
 
@@ -525,7 +660,7 @@ public class Router extends Device
 	 */
 	public void genRipReq(Iface sendiface) {
 		byte[] dstMac = Ethernet.toMACAddress("FF:FF:FF:FF:FF:FF");
-		int dstIP = IPv4.toIPv4Address("224.0.0.9");
+		int dstIP = RIP_MULTICAST;
 		Ethernet ether = genRipPacket(dstIP, sendiface.getIpAddress(), 
 			dstMac, sendiface.getMacAddress().toBytes(), RIPv2.COMMAND_REQUEST);
 		this.sendPacket(ether, sendiface);
@@ -541,7 +676,7 @@ public class Router extends Device
 	public void handleRipReq(int srcIP, byte[] srcMac, Iface inIface) {
 		// make sure route table is dynamic
 		if (!this.isDynamicRoute) {
-			System.out.println("handleRipReq: dynamic route table no initiate");
+			log.warn("handleRipReq: dynamic route table no initiate");
 			return;
 		}
 		// send a response back to the source
@@ -557,7 +692,7 @@ public class Router extends Device
 	public synchronized void handleRipResponse(int srcIP, RIPv2 ripv2, Iface inIface) {
 		// make sure route table is dynamic
 		if (!this.isDynamicRoute) {
-			System.out.println("handleRipResponse: dynamic route table no initiate");
+			log.warn("handleRipResponse: dynamic route table no initiate");
 			return;
 		}
 		// a tag to record if updated
@@ -569,6 +704,9 @@ public class Router extends Device
 			if (routeEntry == null) {
 				this.routeTable.insert(ripv2Entry.getAddress(), srcIP, 
 					ripv2Entry.getSubnetMask(), inIface, ripv2Entry.getMetric()+1);
+				// updates replace the entry under the same prefix, so one 
+				// timer per inserted prefix is enough
+				scheduleExpiry(ripv2Entry.getAddress(), ripv2Entry.getSubnetMask(), ROUTE_TIMEOUT);
 				isUpdated = true;
 			} else {
 				// if the new cost is lower, update
@@ -586,7 +724,7 @@ public class Router extends Device
 		}
 		// broadcast if updated
 		if (isUpdated) {
-			System.out.println("handleRipResponse: update the routetable, broadcast");
+			log.debug("handleRipResponse: update the routetable, broadcast");
 			broadcastRipRsp();
 		}
 	}
@@ -603,7 +741,7 @@ public class Router extends Device
 	public void genRipResponse(int dstIP, int srcIP, byte[] dstMac, byte[] srcMac, Iface sendIface) {
 		// make sure route table is dynamic
 		if (!this.isDynamicRoute) {
-			System.out.println("genRipResponse: dynamic route table no initiate");
+			log.warn("genRipResponse: dynamic route table no initiate");
 			return;
 		}
 		Ethernet ether = genRipPacket(dstIP, srcIP, dstMac, srcMac, RIPv2.COMMAND_RESPONSE);
@@ -614,62 +752,44 @@ public class Router extends Device
 	public synchronized void broadcastRipRsp() {
 		// make sure route table is dynamic
 		if (!this.isDynamicRoute) {
-			System.out.println("genRipResponse: dynamic route table no initiate");
+			log.warn("genRipResponse: dynamic route table no initiate");
 			return;
 		}
 		byte[] dstMac = Ethernet.toMACAddress("FF:FF:FF:FF:FF:FF");
-		int dstIP = IPv4.toIPv4Address("224.0.0.9");
+		int dstIP = RIP_MULTICAST;
+		// write the responses for every interface together
+		beginBatch();
 		for (Iface iface : this.interfaces.values()) {
 			int srcIP = iface.getIpAddress();
 			byte[] srcMac = iface.getMacAddress().toBytes();
 			genRipResponse(dstIP, srcIP, dstMac, srcMac, iface);
 		}
+		endBatch();
 	}
 
 	/**
-	 * a thread to handle time out
+	 * broadcast a response every few seconds, run by the router's timers
 	 */
-	class tableManage implements Runnable {
-
-		// static field for broadcast and time out
-		long timeStampBroadcast;
-		final static int TIME_OUT = 30*1000;
-		final static int BROADCAST = 10*1000;
-
-		/**
-		 * constructor
-		 */
-		public tableManage() {
-			timeStampBroadcast = System.currentTimeMillis();
-		}
-
-		@Override
-		public void run() {
-			while(true) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				// clear time out entry
-				synchronized(routeTable) {
-					for (RouteEntry routeEntry : routeTable.getRouteEntries()) {
-						if ((System.currentTimeMillis() - routeEntry.getTimeStamp() > TIME_OUT) && 
-							routeEntry.getDistance() > 0) {
-							routeTable.remove(routeEntry.getDestinationAddress(), routeEntry.getMaskAddress());
-						}
-					}
-				}
-				// broad cast every 10 seconds
-				if (System.currentTimeMillis() - timeStampBroadcast > BROADCAST) {
-					broadcastRipRsp();
-					timeStampBroadcast = System.currentTimeMillis();
-				}
-			}
-		}
+	private void periodicBroadcast() {
+		getTimers().schedule(this::periodicBroadcast, BROADCAST_INTERVAL);
+		broadcastRipRsp();
 	}
 
-
+	/**
+	 * remove a route once it has not been refreshed for a while
+	 * @param dstIP destination of the route
+	 * @param maskIP subnet mask of the route
+	 * @param delay time until the route may expire, in milliseconds
+	 */
+	private void scheduleExpiry(int dstIP, int maskIP, long delay) {
+		getTimers().schedule(() -> {
+			// a refreshed route is checked again when it would next expire
+			long remaining = this.routeTable.expire(dstIP, maskIP, ROUTE_TIMEOUT);
+			if (remaining > 0) {
+				scheduleExpiry(dstIP, maskIP, remaining);
+			}
+		}, delay);
+	}
 }
 
 
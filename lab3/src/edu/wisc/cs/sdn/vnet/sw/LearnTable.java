@@ -4,6 +4,7 @@ import net.floodlightcontroller.packet.MACAddress;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.TimerWheel;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -13,10 +14,11 @@ import javax.sound.midi.VoiceStatus;
  *  The entry to store the interface and the time packet comes in
  */
 class TableEntry {
-    // private field, the interface and time come in 
-    private Iface       inIface;
+    // private field, the interface and time come in; volatile since
+    // several worker threads may learn the same address at once
+    private volatile Iface       inIface;
     // time in mill seconds
-    private long            time_init;
+    private volatile long            time_init;
 
     /**
      * init a new entry
@@ -69,23 +71,23 @@ class TableEntry {
  *  
  */
 
-public class LearnTable implements Runnable {
+public class LearnTable {
     // static fields, fixed table size and timeout
     public static final int MAX_SIZE = 1024;
     public static final int TIME_OUT = 15;
 
-    // public fields, a hashmap to store the mac address and related interface
-    Map<MACAddress, TableEntry> macMap;
-    Thread                          time_check;
-    Runnable                        Tim_out;
+    // public fields, a hashmap to store the mac address and related interface,
+    // keyed on the address as a long so raw frames need no MACAddress
+    Map<Long, TableEntry> macMap;
+    // the switch's timers, which age out entries
+    TimerWheel                      timers;
     /**
      * init LearnTable
+     * @param timers the timers to age out entries on
      */
-    public LearnTable()  {
-        macMap = new ConcurrentHashMap<MACAddress, TableEntry>();
-
-        time_check = new Thread(this);
-        time_check.start();
+    public LearnTable(TimerWheel timers)  {
+        macMap = new ConcurrentHashMap<Long, TableEntry>();
+        this.timers = timers;
     }
 
     /**
@@ -94,12 +96,24 @@ public class LearnTable implements Runnable {
      * @param intface the interface that source come in 
      */
     public void updateEntry(MACAddress address, Iface intface) {
+        updateEntry(address.toLong(), intface);
+    }
+
+    /**
+     * add new mac address and interface to an entry
+     * @param address the source mac address, in the lower 48 bits
+     * @param intface the interface that source come in 
+     */
+    public void updateEntry(long address, Iface intface) {
         // when thre is no related mac address, created new entry
-        if (!macMap.containsKey(address)) {
-            macMap.put(address, new TableEntry(intface));
+        TableEntry entry = macMap.get(address);
+        if (entry == null) {
+            TableEntry created = new TableEntry(intface);
+            if (macMap.putIfAbsent(address, created) == null) {
+                scheduleTimeout(address, created, TIME_OUT * 1000);
+            }
         } else {
         // update the interface and time in entry vice versa
-            TableEntry entry = macMap.get(address);
             entry.setIface(intface);
             entry.setTime(System.currentTimeMillis());
         }
@@ -112,37 +126,47 @@ public class LearnTable implements Runnable {
      * @return the interface, if time out return null
      */
     public Iface getInterface(MACAddress address) {
+        return getInterface(address.toLong());
+    }
+
+    /**
+     * get the interface related to mac address
+     * @param address the destination mac address, in the lower 48 bits
+     * @return the interface, if time out return null
+     */
+    public Iface getInterface(long address) {
         // check if in the table
-        if (macMap.containsKey(address)) {
+        TableEntry entry = macMap.get(address);
+        if (entry != null) {
             // check whether time out
-            if (Math.abs(macMap.get(address).getTime() - System.currentTimeMillis()) < TIME_OUT*1000) {
-                return macMap.get(address).getIface();
+            if (Math.abs(entry.getTime() - System.currentTimeMillis()) < TIME_OUT*1000) {
+                return entry.getIface();
             }
+            // if time out, remove only this entry, not one another thread
+            // has just put in its place
+            macMap.remove(address, entry);
         }
-        // if time out, return null and remove
-        macMap.remove(address);
         return null;
     }
 
     /**
-     * keep run every second to time out the entry, in a thread
+     * remove an entry once it has not been updated for TIME_OUT seconds;
+     * updating an entry only changes its time, so when the timer fires an
+     * entry that was updated is checked again when it would next time out
+     * @param address the mac address of the entry
+     * @param entry the entry
+     * @param delay time until the entry may time out, in milliseconds
      */
-    @Override
-    public void run() {
-        while (true) {
-            try{
-                // the thread run every 500 seconds
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                break;
+    private void scheduleTimeout(long address, TableEntry entry, long delay) {
+        timers.schedule(() -> {
+            long remaining = entry.getTime() + TIME_OUT * 1000 - System.currentTimeMillis();
+            if (remaining > 0) {
+                scheduleTimeout(address, entry, remaining);
+            } else {
+                // only remove this entry, not one that replaced it
+                macMap.remove(address, entry);
             }
-            // travel and expire the time out entry
-            for (MACAddress address : macMap.keySet()) {
-                if (System.currentTimeMillis() - macMap.get(address).getTime() > TIME_OUT * 1000) {
-                    macMap.remove(address);
-                }
-            }
-        }
+        }, delay);
     }
     
 }
@@ -1,16 +1,20 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
 import net.floodlightcontroller.packet.MACAddress;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Logger;
 
 /**
  * @author Aaron Gember-Jacobson
  */
 public class Switch extends Device
 {	
+	private static final Logger log = Logger.getLogger(Switch.class);
+
 	// instane field, the learning table for a switch
 	private LearnTable learnTable;
 
@@ -23,7 +27,7 @@ public class Switch extends Device
 	public Switch(String host, DumpFile logfile)
 	{
 		super(host,logfile);
-		learnTable = new LearnTable();
+		learnTable = new LearnTable(getTimers());
 		// time = 0;
 	}
 
@@ -34,7 +38,7 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
+		log.debug(() -> "*** -> Received packet: " +
                 etherPacket.toString().replace("\n", "\n\t"));
 		
 		/********************************************************************/
@@ -52,17 +56,41 @@ public class Switch extends Device
 		//if no matched entry in the table, then broadcast
 		if ((port = learnTable.getInterface(destination)) == null) {
 			broadcast(etherPacket, inIface);
-			System.out.println("This packet is broadcast");
+			log.debug("This packet is broadcast");
 		} else {
 			// send directly
 			sendPacket(etherPacket, port);
-			System.out.println("This packet is sent directly");
+			log.debug("This packet is sent directly");
 		}
 
 
 		/********************************************************************/
 	}
 
+	/**
+	 * Handle a raw Ethernet frame received on a specific interface; the
+	 * switch only needs the MAC addresses, so it never decodes the frame.
+	 * @param frame view of the Ethernet frame that was received
+	 * @param inIface the interface on which the frame was received
+	 * @return always true
+	 */
+	@Override
+	public boolean handleFrame(EthernetView frame, Iface inIface)
+	{
+		learnTable.updateEntry(frame.getSourceMAC(), inIface);
+		Iface port = learnTable.getInterface(frame.getDestinationMAC());
+		if (port == null) {
+			for (Iface intface : this.interfaces.values()) {
+				if (inIface != intface) {
+					sendFrame(frame, intface);
+				}
+			}
+		} else {
+			sendFrame(frame, port);
+		}
+		return true;
+	}
+
 	/**
 	 * broadcast on every interface if no related entry in table 
 	 * @param ethernetPacket the packet
@@ -70,10 +98,12 @@ public class Switch extends Device
 	 */
 	public void broadcast(Ethernet ethernetPacket, Iface inTIface) {
 		// broadcast at all interfaces except the one packet come in
+		beginBatch();
 		for (Iface intface : this.interfaces.values()) {
 			if (inTIface != intface) {
 				sendPacket(ethernetPacket, intface);
 			}
 		}
+		endBatch();
 	}
 }
@@ -30,24 +30,32 @@ public class CommandPacket extends Command
 	protected int getSize()
 	{ return super.getSize() + 16; }
 	
+	protected int getSerializedLength()
+	{ return this.getSize() + this.etherPacket.getSerializedLength(); }
+	
 	protected byte[] serialize()
 	{
-		byte[] packet = this.etherPacket.serialize();
-		int size = this.getSize() + packet.length;
-		this.mLen = size;
+		byte[] data = new byte[this.getSerializedLength()];
+		this.serializeTo(ByteBuffer.wrap(data));
+		return data;
+	}
+	
+	/**
+	 * Write the command, including the Ethernet packet and all of its
+	 * payloads, into a buffer at its position without intermediate copies.
+	 * @param bb the buffer to write to
+	 */
+	protected void serializeTo(ByteBuffer bb)
+	{
+		this.mLen = this.getSerializedLength();
 		
-		byte[] data = new byte[size];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        
-        byte[] parentData = super.serialize();
-        
-        bb.put(parentData);
-        byte[] tmp = new byte[16];
-        System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0, 
-                this.mInterfaceName.length());
-        bb.put(tmp);
-        bb.put(packet);
-        
-        return data;
+		bb.putInt(this.mLen);
+		bb.putInt(this.mType);
+		byte[] name = this.mInterfaceName.getBytes();
+		int nameLen = Math.min(name.length, 16);
+		bb.put(name, 0, nameLen);
+		for (int i = nameLen; i < 16; i++)
+		{ bb.put((byte)0); }
+		this.etherPacket.serializeTo(bb);
 	}
 }
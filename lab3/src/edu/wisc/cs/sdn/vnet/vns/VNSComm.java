@@ -1,30 +1,157 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
 import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Pipeline;
 
 public class VNSComm 
 {
-	private Socket socket;
+	/** Size of a VNS_PACKET command's header, which precedes the frame */
+	private static final int PACKET_HEADER_SIZE = 8 + 16;
+	
+	/** Size of the interface name field in a VNS_PACKET command */
+	private static final int IFACE_NAME_SIZE = 16;
+	
+	/** Largest command accepted from the server */
+	private static final int MAX_COMMAND_SIZE = 10000;
+	
+	/** Size of the buffers for reading from and writing to the server */
+	private static final int BUFFER_SIZE = 256 * 1024;
+	
+	/** Default time commands sent while handling frames may wait to be 
+	 *  written, in microseconds */
+	public static final long DEFAULT_FLUSH_WINDOW = 50;
+	
+	private SocketChannel channel;
 	private Device device;
 	
+	/** Selector the reading thread waits on for data from the server */
+	private Selector readSelector;
+	
+	/** Selector a sending thread waits on while the socket cannot take more */
+	private Selector writeSelector;
+	
+	/** Data read from the server; the bytes between its position and limit
+	 *  have not been processed yet */
+	private ByteBuffer readBuffer;
+	
+	/** Commands waiting to be written to the server */
+	private ByteBuffer writeBuffer;
+	
+	/** Thread reading from the server; commands it sends in a batch are 
+	 *  only written when it runs out of data to read or the flush window 
+	 *  passes, so the packets it sends in response to a burst of frames go
+	 *  out in a single write */
+	private volatile Thread readerThread;
+	
+	/** Number of batches each thread has begun but not ended */
+	private ThreadLocal<int[]> batchDepth = 
+			ThreadLocal.withInitial(() -> new int[1]);
+	
+	/** Longest time a command may wait in the write buffer while the 
+	 *  reading thread is busy, in nanoseconds */
+	private long flushWindow = DEFAULT_FLUSH_WINDOW * 1000;
+	
+	/** When the oldest command in the write buffer was added */
+	private long queuedSince;
+	
+	/** Worker threads received frames are handed to; null if frames are 
+	 *  handled by the reading thread */
+	private Pipeline pipeline;
+	
+	/** Thread that writes commands to the server when frames are handled by
+	 *  a pipeline; null if commands are written by the thread sending them */
+	private Thread writerThread;
+	
+	/** Device's interfaces and their names as sent in VNS_PACKET commands */
+	private Iface[] ifaces = new Iface[0];
+	private byte[][] ifaceNames = new byte[0][];
+	
+	/** View reused for every frame received */
+	private EthernetView frameView = new EthernetView();
+	
+	/** Command reused for every packet sent */
+	private CommandPacket sendCmd = new CommandPacket();
+	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
 		this.device.setVNSComm(this);
 	}
 	
+	/**
+	 * @return the device whose packets are sent and received
+	 */
+	protected Device getDevice()
+	{ return this.device; }
+	
+	/**
+	 * @param micros longest time commands sent while the reading thread is
+	 *        handling frames may wait to be written, in microseconds; 0 to
+	 *        write them after every frame
+	 */
+	public void setFlushWindow(long micros)
+	{ this.flushWindow = micros * 1000; }
+	
+	/**
+	 * Hand received frames to a pipeline of worker threads rather than 
+	 * handling them on the reading thread. Commands are then written to the
+	 * server by a single writer thread, so workers never wait on the socket.
+	 * Must be called after connecting to the server and before any frames
+	 * are read.
+	 * @param pipeline the pipeline to hand frames to
+	 */
+	public void setPipeline(Pipeline pipeline)
+	{
+		this.pipeline = pipeline;
+		this.writerThread = new Thread(this::writeCommands, "vns-writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+	
+	/**
+	 * Start a batch of sends. Commands sent by this thread are held in the
+	 * write buffer until the matching call to {@link #endBatch()}. Batches
+	 * may be nested.
+	 */
+	public void beginBatch()
+	{ this.batchDepth.get()[0]++; }
+	
+	/**
+	 * End a batch of sends. When the outermost batch ends the commands sent
+	 * in it are written, unless this is the reading thread and the flush 
+	 * window has not yet passed, in which case they are written along with
+	 * the replies to the frames that follow.
+	 * @return true if the commands were written or left queued, otherwise
+	 *         false
+	 */
+	public boolean endBatch()
+	{
+		int[] depth = this.batchDepth.get();
+		if (depth[0] > 0 && --depth[0] > 0)
+		{ return true; }
+		synchronized (this)
+		{
+			if (Thread.currentThread() == this.readerThread 
+					&& !this.windowPassed())
+			{ return true; }
+			return this.flush();
+		}
+	}
+	
 	public boolean connectToServer(short port, String server)
 	{
 		// Grab server address from name
@@ -39,31 +166,34 @@ public class VNSComm
 		
 		// Create socket and attempt to connect to the server
 		try 
-		{ socket = new Socket(addr, port); }
+		{
+			this.channel = SocketChannel.open(new InetSocketAddress(addr, port));
+			this.channel.socket().setTcpNoDelay(true);
+			this.channel.configureBlocking(false);
+			this.readSelector = Selector.open();
+			this.writeSelector = Selector.open();
+			this.channel.register(this.readSelector, SelectionKey.OP_READ);
+			this.channel.register(this.writeSelector, SelectionKey.OP_WRITE);
+		}
 		catch (IOException e) 
 		{
 			e.printStackTrace();
 			return false;
 		}
+		this.readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.readBuffer.flip();
+		this.writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
 		
 		// Send VNS_OPEN message to server
 		CommandOpen cmdOpen = new CommandOpen();
 		cmdOpen.mVirtualHostId = this.device.getHost();
 		byte[] buf = cmdOpen.serialize();
 		
-		try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
+		synchronized (this)
 		{
-			e.printStackTrace();
-			return false;
+			this.writeBuffer.put(buf);
+			return this.flush();
 		}
-		
-		return true; 
 	}
 	
 	private boolean handleHwInfo(CommandHwInfo cmdHwInfo)
@@ -91,6 +221,9 @@ public class VNSComm
 			}
 		}
 		
+		this.cacheInterfaceNames();
+		this.device.interfacesChanged();
+		
 		System.out.println("Device interfaces:");
 		if (0 == this.device.getInterfaces().size())
 		{ System.out.println(" Interface list empty"); }
@@ -103,78 +236,84 @@ public class VNSComm
 		return true;
 	}
 	
-	public boolean readFromServer()
-	{ return this.readFromServerExpect(0); }
-	
-	public boolean readFromServerExpect(int expectedCmd)
+	/**
+	 * Record the device's interfaces along with their names as they appear
+	 * in VNS_PACKET commands, so a frame's interface can be found without
+	 * decoding the name into a string.
+	 */
+	private void cacheInterfaceNames()
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
+		int count = this.device.getInterfaces().size();
+		Iface[] ifaces = new Iface[count];
+		byte[][] ifaceNames = new byte[count][];
+		int i = 0;
+		for (Iface iface : this.device.getInterfaces().values())
 		{
-			e.printStackTrace();
-			return false;
+			byte[] name = iface.getName().getBytes();
+			ifaces[i] = iface;
+			ifaceNames[i] = new byte[IFACE_NAME_SIZE];
+			System.arraycopy(name, 0, ifaceNames[i], 0, 
+					Math.min(name.length, IFACE_NAME_SIZE));
+			i++;
 		}
-		
-		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
+		this.ifaces = ifaces;
+		this.ifaceNames = ifaceNames;
+	}
+	
+	/**
+	 * Find the interface whose name is in a VNS_PACKET command.
+	 * @param buf buffer holding the command
+	 * @param offset offset of the interface name field
+	 * @return the interface; null if the name matches no cached interface
+	 */
+	private Iface findInterface(ByteBuffer buf, int offset)
+	{
+		for (int i = 0; i < this.ifaces.length; i++)
 		{
-			try 
-			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				return false;
-			}
+			byte[] name = this.ifaceNames[i];
+			int j = 0;
+			while (j < IFACE_NAME_SIZE && name[j] == buf.get(offset + j))
+			{ j++; }
+			if (IFACE_NAME_SIZE == j)
+			{ return this.ifaces[i]; }
 		}
-		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
-		
-		if (len > 10000 || len < 0)
+		return null;
+	}
+	
+	/**
+	 * @return the name of an interface as sent in VNS_PACKET commands
+	 */
+	private byte[] getInterfaceName(String ifaceName)
+	{
+		for (int i = 0; i < this.ifaces.length; i++)
 		{
-			System.err.println(String.format(
-					"Error: comamnd length too large %d", len));
-			try { socket.close(); } catch (IOException e) { }
-			return false;
+			if (this.ifaces[i].getName().equals(ifaceName))
+			{ return this.ifaceNames[i]; }
 		}
+		byte[] name = new byte[IFACE_NAME_SIZE];
+		byte[] bytes = ifaceName.getBytes();
+		System.arraycopy(bytes, 0, name, 0, Math.min(bytes.length, IFACE_NAME_SIZE));
+		return name;
+	}
+	
+	public boolean readFromServer()
+	{ return this.readFromServerExpect(0); }
+	
+	public boolean readFromServerExpect(int expectedCmd)
+	{
+		this.readerThread = Thread.currentThread();
 		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
+		// Wait until a whole command has been read
+		if (!this.fillReadBuffer())
+		{ return false; }
 		
-		// Read the rest of the command
-		while (bytesRead < len)
-		{
-			try 
-			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
-				return false;
-			}
-		}
+		ByteBuffer buf = this.readBuffer;
+		int start = buf.position();
+		int len = buf.getInt(start);
+		int command = buf.getInt(start + 4);
+		buf.position(start + len);
 		
 		// Make sure the command is what we expected if we were expecting something
-		int command = buf.getInt();
 		if (expectedCmd != 0 && command != expectedCmd)
 		{
 			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
@@ -186,32 +325,52 @@ public class VNSComm
 			}
 		}
 		
-		buf.position(0);
 		switch(command)
 		{
 		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
+			int frameOffset = start + PACKET_HEADER_SIZE;
+			int frameLen = len - PACKET_HEADER_SIZE;
+			if (frameLen < 0)
+			{
+				System.err.println(String.format(
+						"Error: packet command too short %d", len));
+				break;
+			}
+			Iface inIface = this.findInterface(buf, start + 8);
+			if (null == inIface)
+			{ 
+				byte[] name = new byte[IFACE_NAME_SIZE];
+				buf.get(start + 8, name);
+				inIface = this.device.getInterface(new String(name).trim()); 
+			}
 			
 			// Log packet
             if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
+            { 
+            	this.device.getLogFile().dump(buf, frameOffset, frameLen,
+            			(inIface != null ? inIface.getName() : null), false); 
+            }
 			
-			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
-			break;
+			// Leave the frame to a worker thread, if there are any
+			if (this.pipeline != null)
+			{ return this.pipeline.submit(buf, frameOffset, frameLen, inIface); }
+			
+			// Packets sent in response to the frame are written together
+			this.beginBatch();
+			this.device.receiveFrame(this.frameView.wrap(buf, frameOffset, 
+					frameLen), inIface);
+			return this.endBatch();
 			
 		case Command.VNS_CLOSE:
 			System.err.println("VNS server closed session.");
 			CommandClose cmdClose = new CommandClose();
-			cmdClose.deserialize(buf);
+			cmdClose.deserialize(this.copyCommand(start, len));
 			System.err.println("Reason: " + new String(cmdClose.mErrorMessage));
 			return true;
 			
 		case Command.VNS_HW_INFO:
 			CommandHwInfo cmdHwInfo = new CommandHwInfo();
-			cmdHwInfo.deserialize(buf);
+			cmdHwInfo.deserialize(this.copyCommand(start, len));
 			this.handleHwInfo(cmdHwInfo);
 			break;
 		
@@ -223,6 +382,96 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Read from the server until the read buffer holds a whole command. If 
+	 * nothing is waiting to be read, commands waiting to be sent are written
+	 * before blocking.
+	 * @return true if a command is ready to be processed, false if the 
+	 *         connection failed or the command is invalid
+	 */
+	private boolean fillReadBuffer()
+	{
+		ByteBuffer buf = this.readBuffer;
+		while (true)
+		{
+			if (buf.remaining() >= 4)
+			{
+				int len = buf.getInt(buf.position());
+				if (len > MAX_COMMAND_SIZE || len < 8)
+				{
+					System.err.println(String.format(
+							"Error: comamnd length too large %d", len));
+					this.close();
+					return false;
+				}
+				if (buf.remaining() >= len)
+				{ return true; }
+			}
+			
+			// Read whatever has arrived after the partial command
+			int ret;
+			buf.compact();
+			try 
+			{ ret = this.channel.read(buf); }
+			catch (IOException e) 
+			{
+				e.printStackTrace();
+				System.err.println("Error: failed reading command body");
+				this.close();
+				return false;
+			}
+			finally
+			{ buf.flip(); }
+			
+			if (ret < 0)
+			{
+				System.err.println("Error: connection closed by server");
+				this.close();
+				return false;
+			}
+			
+			if (0 == ret)
+			{
+				// Nothing has arrived, so send replies before waiting for more
+				synchronized (this)
+				{
+					if (!this.flush())
+					{ return false; }
+				}
+				try
+				{
+					this.readSelector.select();
+					this.readSelector.selectedKeys().clear();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+					return false;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return a copy of a command in the read buffer, for commands that are
+	 *         decoded from the start of their own buffer
+	 */
+	private ByteBuffer copyCommand(int start, int len)
+	{
+		ByteBuffer copy = ByteBuffer.allocate(len);
+		this.readBuffer.get(start, copy.array());
+		return copy;
+	}
+	
+	private void close()
+	{
+		try { this.channel.close(); } catch (IOException e) { }
+		
+		// Wake the writer thread and any senders waiting for it
+		synchronized (this)
+		{ this.notifyAll(); }
+	}
+	
 	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 			String ifaceName)
 	{
@@ -242,13 +491,22 @@ public class VNSComm
 	}
 	
 	// sr_send_packet
-	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
+	public synchronized boolean sendPacket(Ethernet etherPacket, String ifaceName)
 	{
-		CommandPacket cmdPacket = new CommandPacket();
-		cmdPacket.mInterfaceName = ifaceName;
-		cmdPacket.etherPacket = etherPacket;
+		this.sendCmd.mInterfaceName = ifaceName;
+		this.sendCmd.etherPacket = etherPacket;
+		int size = this.sendCmd.getSerializedLength();
+		if (!this.reserve(size))
+		{
+			this.sendCmd.etherPacket = null;
+			return false;
+		}
 		
-		byte[] buf = cmdPacket.serialize();
+		// Serialize every layer straight into the write buffer
+		ByteBuffer bb = this.writeBuffer;
+		int start = bb.position();
+		this.sendCmd.serializeTo(bb);
+		this.sendCmd.etherPacket = null;
 		
 		/*if (!etherAddrsMatchInterface(etherPacket, ifaceName))
 		{
@@ -258,19 +516,194 @@ public class VNSComm
 		
 		// Log packet
         if (this.device.getLogFile() != null)
-        { this.device.getLogFile().dump(etherPacket); }
+        { 
+        	this.device.getLogFile().dump(bb, start + PACKET_HEADER_SIZE, 
+        			size - PACKET_HEADER_SIZE, ifaceName, true); 
+        }
 		
-	    try
+		return this.commit();
+	}
+	
+	/**
+	 * Send a raw Ethernet frame out an interface.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public synchronized boolean sendFrame(ByteBuffer frame, int offset, 
+			int length, String ifaceName)
+	{
+		int size = PACKET_HEADER_SIZE + length;
+		if (!this.reserve(size))
+		{ return false; }
+		
+		ByteBuffer bb = this.writeBuffer;
+		int start = bb.position();
+		bb.putInt(size);
+		bb.putInt(Command.VNS_PACKET);
+		bb.put(this.getInterfaceName(ifaceName));
+		bb.put(bb.position(), frame, offset, length);
+		bb.position(bb.position() + length);
+		
+		// Log packet
+        if (this.device.getLogFile() != null)
+        { 
+        	this.device.getLogFile().dump(bb, start + PACKET_HEADER_SIZE, length, 
+        			ifaceName, true); 
+        }
+		
+		return this.commit();
+	}
+	
+	/**
+	 * Make room in the write buffer for a command, writing out the commands
+	 * already in it if necessary. Must be called while synchronized.
+	 * @param size size of the command
+	 * @return true if there is room, otherwise false
+	 */
+	private boolean reserve(int size)
+	{
+		if (null == this.writeBuffer)
 		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
+			System.err.println("Error: not connected to server");
+			return false;
+		}
+		if (size > this.writeBuffer.capacity())
+		{
+			System.err.println(String.format(
+					"Error: command too large to send %d", size));
+			return false;
+		}
+		if (size > this.writeBuffer.remaining() && !this.flush())
+		{ return false; }
+		
+		// Wait for the writer thread, if there is one, to take the commands
+		while (size > this.writeBuffer.remaining())
+		{
+			if (!this.channel.isOpen())
+			{
+				System.err.println("Error writing packet");
+				return false;
+			}
+			try
+			{ this.wait(); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		if (0 == this.writeBuffer.position())
+		{ this.queuedSince = System.nanoTime(); }
+		return true;
+	}
+	
+	/**
+	 * Finish sending a command that was added to the write buffer. Commands
+	 * sent in a batch are left to be written when the batch ends, unless 
+	 * the oldest command queued has waited longer than the flush window; 
+	 * other commands are written now. Must be called while synchronized.
+	 * @return true if the command was sent or queued, otherwise false
+	 */
+	private boolean commit()
+	{
+		if (this.batchDepth.get()[0] > 0 && !this.windowPassed())
+		{ return true; }
+		return this.flush();
+	}
+	
+	/**
+	 * @return true if the oldest command in the write buffer has waited for
+	 *         the flush window. Must be called while synchronized.
+	 */
+	private boolean windowPassed()
+	{ return (System.nanoTime() - this.queuedSince >= this.flushWindow); }
+	
+	/**
+	 * Write every command in the write buffer to the server, waiting if the
+	 * socket cannot take them all at once. If there is a writer thread it is
+	 * woken to write them instead. Must be called while synchronized.
+	 * @return true if the commands were written, otherwise false
+	 */
+	private boolean flush()
+	{
+		if (null == this.writeBuffer || 0 == this.writeBuffer.position())
+		{ return true; }
+		if (this.writerThread != null)
+		{
+			this.notifyAll();
+			return true;
+		}
+		return this.write(this.writeBuffer);
+	}
+	
+	/**
+	 * Write every command in a buffer to the server, waiting if the socket
+	 * cannot take them all at once. The buffer is cleared afterwards.
+	 * @param buf buffer of commands, in write mode
+	 * @return true if the commands were written, otherwise false
+	 */
+	private boolean write(ByteBuffer buf)
+	{
+		buf.flip();
+		try
+		{
+			while (buf.hasRemaining())
+			{
+				if (0 == this.channel.write(buf))
+				{
+					this.writeSelector.select();
+					this.writeSelector.selectedKeys().clear();
+				}
+			}
 		}
 		catch(IOException e)
 		{
 			System.err.println("Error writing packet");
 			return false;
 		}
+		finally
+		{ buf.clear(); }
 		return true;
 	}
+	
+	/**
+	 * Body of the writer thread: repeatedly swap the write buffer for an 
+	 * empty one and write out the commands that were in it, until the 
+	 * connection is closed. Senders keep filling the new buffer while the
+	 * old one is written.
+	 */
+	private void writeCommands()
+	{
+		ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		while (true)
+		{
+			synchronized (this)
+			{
+				while (0 == this.writeBuffer.position())
+				{
+					if (!this.channel.isOpen())
+					{ return; }
+					try
+					{ this.wait(); }
+					catch (InterruptedException e)
+					{ return; }
+				}
+				ByteBuffer full = this.writeBuffer;
+				this.writeBuffer = out;
+				out = full;
+				
+				// Wake senders waiting for room
+				this.notifyAll();
+			}
+			
+			if (!this.write(out))
+			{
+				this.close();
+				return;
+			}
+		}
+	}
 }
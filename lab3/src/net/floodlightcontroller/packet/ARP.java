@@ -208,10 +208,19 @@ public class ARP extends BasePacket {
 
     @Override
     public byte[] serialize() {
-        int length = 8 + (2 * (0xff & this.hardwareAddressLength))
+        byte[] data = new byte[getSerializedLength()];
+        serializeTo(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    @Override
+    public int getSerializedLength() {
+        return 8 + (2 * (0xff & this.hardwareAddressLength))
                 + (2 * (0xff & this.protocolAddressLength));
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+    }
+
+    @Override
+    public void serializeTo(ByteBuffer bb) {
         bb.putShort(this.hardwareType);
         bb.putShort(this.protocolType);
         bb.put(this.hardwareAddressLength);
@@ -221,7 +230,6 @@ public class ARP extends BasePacket {
         bb.put(this.senderProtocolAddress, 0, 0xff & this.protocolAddressLength);
         bb.put(this.targetHardwareAddress, 0, 0xff & this.hardwareAddressLength);
         bb.put(this.targetProtocolAddress, 0, 0xff & this.protocolAddressLength);
-        return data;
     }
 
     @Override
@@ -0,0 +1,81 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight view of an Ethernet/IPv4 ARP packet in a {@link ByteBuffer}.
+ */
+public class ArpView extends PacketView {
+
+    @Override
+    public ArpView wrap(ByteBuffer buffer, int offset, int length) {
+        super.wrap(buffer, offset, length);
+        return this;
+    }
+
+    /**
+     * @return true if the packet maps IPv4 addresses to Ethernet addresses
+     *         and is long enough to hold them
+     */
+    public boolean isValid() {
+        return length >= 28
+                && getHardwareType() == ARP.HW_TYPE_ETHERNET
+                && getProtocolType() == ARP.PROTO_TYPE_IP
+                && buffer.get(offset + 4) == Ethernet.DATALAYER_ADDRESS_LENGTH
+                && buffer.get(offset + 5) == 4;
+    }
+
+    @Override
+    public int getHeaderLength() {
+        return 28;
+    }
+
+    /**
+     * @return the hardwareType
+     */
+    public short getHardwareType() {
+        return buffer.getShort(offset);
+    }
+
+    /**
+     * @return the protocolType
+     */
+    public short getProtocolType() {
+        return buffer.getShort(offset + 2);
+    }
+
+    /**
+     * @return the opCode
+     */
+    public short getOpCode() {
+        return buffer.getShort(offset + 6);
+    }
+
+    /**
+     * @return the senderHardwareAddress in the lower 48 bits of a long
+     */
+    public long getSenderHardwareAddress() {
+        return getMAC(offset + 8);
+    }
+
+    /**
+     * @return the senderProtocolAddress
+     */
+    public int getSenderProtocolAddress() {
+        return buffer.getInt(offset + 14);
+    }
+
+    /**
+     * @return the targetHardwareAddress in the lower 48 bits of a long
+     */
+    public long getTargetHardwareAddress() {
+        return getMAC(offset + 18);
+    }
+
+    /**
+     * @return the targetProtocolAddress
+     */
+    public int getTargetProtocolAddress() {
+        return buffer.getInt(offset + 24);
+    }
+}
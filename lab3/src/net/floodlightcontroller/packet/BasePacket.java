@@ -17,15 +17,42 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
 
 /**
 *
 * @author David Erickson (daviderickson@cs.stanford.edu)
 */
 public abstract class BasePacket implements IPacket {
+    /**
+     * If true, deserialize retains the byte range of a payload and decodes
+     * it only when getPayload is first called
+     */
+    protected static boolean lazyDecoding = false;
+
     protected IPacket parent;
     protected IPacket payload;
 
+    /** Undecoded payload bytes; null once decoded or replaced */
+    protected byte[] rawPayload;
+    protected int rawPayloadOffset;
+    protected int rawPayloadLength;
+
+    /**
+     * @return true if payloads are decoded on first access
+     */
+    public static boolean isLazyDecoding() {
+        return lazyDecoding;
+    }
+
+    /**
+     * @param lazyDecoding true to decode payloads on first access rather
+     *        than in deserialize
+     */
+    public static void setLazyDecoding(boolean lazyDecoding) {
+        BasePacket.lazyDecoding = lazyDecoding;
+    }
+
     /**
      * @return the parent
      */
@@ -48,6 +75,13 @@ public abstract class BasePacket implements IPacket {
      */
     @Override
     public IPacket getPayload() {
+        if (rawPayload != null) {
+            byte[] data = rawPayload;
+            rawPayload = null;
+            payload = decodePayload(data, rawPayloadOffset, rawPayloadLength);
+            if (payload != null)
+                payload.setParent(this);
+        }
         return payload;
     }
 
@@ -56,9 +90,91 @@ public abstract class BasePacket implements IPacket {
      */
     @Override
     public IPacket setPayload(IPacket payload) {
+        this.rawPayload = null;
         this.payload = payload;
         return this;
     }
+
+    /**
+     * @return true if the payload was deserialized lazily and has not been
+     *         decoded since, so its original bytes are still current
+     */
+    public boolean isPayloadRaw() {
+        return rawPayload != null;
+    }
+
+    /**
+     * Decodes the payload of this packet. Subclasses that carry a payload
+     * override this to pick the payload type from their header fields.
+     * @param data
+     * @param offset offset of the payload
+     * @param length length of the payload
+     * @return the deserialized payload
+     */
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        return new Data().deserialize(data, offset, length);
+    }
+
+    /**
+     * Decodes the payload now, or records its byte range to be decoded on
+     * first access if lazy decoding is enabled.
+     * @param data
+     * @param offset offset of the payload
+     * @param length length of the payload
+     */
+    protected void deserializePayload(byte[] data, int offset, int length) {
+        if (lazyDecoding) {
+            this.payload = null;
+            this.rawPayload = data;
+            this.rawPayloadOffset = offset;
+            this.rawPayloadLength = length;
+        } else {
+            this.rawPayload = null;
+            this.payload = decodePayload(data, offset, length);
+            this.payload.setParent(this);
+        }
+    }
+
+    /**
+     * @return the number of bytes the payload occupies when serialized
+     */
+    protected int getPayloadSerializedLength() {
+        if (rawPayload != null)
+            return rawPayloadLength;
+        if (payload == null)
+            return 0;
+        return payload.getSerializedLength();
+    }
+
+    /**
+     * Serializes the payload into a buffer, copying its original bytes if
+     * it was never decoded.
+     * @param bb the buffer to write to
+     */
+    protected void serializePayloadTo(ByteBuffer bb) {
+        if (rawPayload != null) {
+            bb.put(rawPayload, rawPayloadOffset, rawPayloadLength);
+        } else if (payload != null) {
+            payload.setParent(this);
+            payload.serializeTo(bb);
+        }
+    }
+
+    /**
+     * Default implementation for packets that only implement serialize().
+     */
+    @Override
+    public void serializeTo(ByteBuffer bb) {
+        bb.put(serialize());
+    }
+
+    /**
+     * Default implementation for packets that only implement serialize().
+     */
+    @Override
+    public int getSerializedLength() {
+        return serialize().length;
+    }
     
     @Override
     public void resetChecksum() {
@@ -73,6 +189,7 @@ public abstract class BasePacket implements IPacket {
     public int hashCode() {
         final int prime = 6733;
         int result = 1;
+        IPacket payload = getPayload();
         result = prime * result + ((payload == null) ? 0 : payload.hashCode());
         return result;
     }
@@ -89,10 +206,11 @@ public abstract class BasePacket implements IPacket {
         if (!(obj instanceof BasePacket))
             return false;
         BasePacket other = (BasePacket) obj;
+        IPacket payload = getPayload();
         if (payload == null) {
-            if (other.payload != null)
+            if (other.getPayload() != null)
                 return false;
-        } else if (!payload.equals(other.payload))
+        } else if (!payload.equals(other.getPayload()))
             return false;
         return true;
     }
@@ -0,0 +1,161 @@
+package net.floodlightcontroller.packet;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The Internet checksum (RFC 1071) used by IPv4, UDP, TCP and ICMP.
+ *
+ * Sums are accumulated eight bytes at a time: each big-endian long read
+ * is split into its two 32-bit halves, which are added into a 64-bit
+ * accumulator, and the carries are folded back into 16 bits at the end.
+ * Because one's complement addition is associative, this gives the same
+ * result as adding 16-bit words one at a time.
+ *
+ * Buffers passed in must use big-endian (network) byte order, which is the
+ * default for {@link ByteBuffer}.
+ */
+public final class Checksum {
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private Checksum() {
+    }
+
+    /**
+     * Computes the one's complement sum of a range of a buffer.
+     * @param bb the buffer
+     * @param offset offset of the first byte to sum
+     * @param length number of bytes to sum; an odd trailing byte is padded
+     *        with zero
+     * @param initial a partial sum to add in, e.g. from
+     *        {@link #pseudoHeaderSum}; 0 if there is none
+     * @return the sum, folded to 16 bits
+     */
+    public static int sum(ByteBuffer bb, int offset, int length, int initial) {
+        long accumulation = initial & 0xffffffffL;
+        int end = offset + length;
+        int i = offset;
+        for (; i + 8 <= end; i += 8) {
+            long word = bb.getLong(i);
+            accumulation += (word >>> 32) + (word & 0xffffffffL);
+        }
+        if (i + 4 <= end) {
+            accumulation += bb.getInt(i) & 0xffffffffL;
+            i += 4;
+        }
+        if (i + 2 <= end) {
+            accumulation += bb.getShort(i) & 0xffff;
+            i += 2;
+        }
+        if (i < end) {
+            accumulation += (bb.get(i) & 0xff) << 8;
+        }
+        return fold(accumulation);
+    }
+
+    /**
+     * Computes the one's complement sum of a range of an array.
+     * @param data the array
+     * @param offset offset of the first byte to sum
+     * @param length number of bytes to sum; an odd trailing byte is padded
+     *        with zero
+     * @param initial a partial sum to add in; 0 if there is none
+     * @return the sum, folded to 16 bits
+     */
+    public static int sum(byte[] data, int offset, int length, int initial) {
+        long accumulation = initial & 0xffffffffL;
+        int end = offset + length;
+        int i = offset;
+        for (; i + 8 <= end; i += 8) {
+            long word = (long) LONGS.get(data, i);
+            accumulation += (word >>> 32) + (word & 0xffffffffL);
+        }
+        for (; i + 2 <= end; i += 2) {
+            accumulation += ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+        }
+        if (i < end) {
+            accumulation += (data[i] & 0xff) << 8;
+        }
+        return fold(accumulation);
+    }
+
+    /**
+     * Computes the checksum of a range of a buffer.
+     * @return the one's complement of the one's complement sum; 0 if the
+     *         range already contains a correct checksum
+     * @see #sum(ByteBuffer, int, int, int)
+     */
+    public static short checksum(ByteBuffer bb, int offset, int length, int initial) {
+        return (short) ~sum(bb, offset, length, initial);
+    }
+
+    /**
+     * Computes the checksum of a range of an array.
+     * @return the one's complement of the one's complement sum; 0 if the
+     *         range already contains a correct checksum
+     * @see #sum(byte[], int, int, int)
+     */
+    public static short checksum(byte[] data, int offset, int length, int initial) {
+        return (short) ~sum(data, offset, length, initial);
+    }
+
+    /**
+     * Computes the sum of the IPv4 pseudo header covered by the UDP and TCP
+     * checksums.
+     * @param sourceAddress
+     * @param destinationAddress
+     * @param protocol
+     * @param length length of the UDP or TCP header and payload
+     * @return the sum, folded to 16 bits, to pass as the initial sum
+     */
+    public static int pseudoHeaderSum(int sourceAddress, int destinationAddress,
+            byte protocol, int length) {
+        long accumulation = (sourceAddress & 0xffffffffL)
+                + (destinationAddress & 0xffffffffL)
+                + (protocol & 0xff) + (length & 0xffff);
+        return fold(accumulation);
+    }
+
+    /**
+     * Updates a checksum after one 16-bit word it covers has changed, using
+     * HC' = ~(~HC + ~m + m') from RFC 1624.
+     * @param checksum the current checksum
+     * @param oldWord the old value of the word
+     * @param newWord the new value of the word
+     * @return the updated checksum
+     */
+    public static short update(short checksum, short oldWord, short newWord) {
+        long accumulation = (~checksum & 0xffff) + (~oldWord & 0xffff)
+                + (newWord & 0xffff);
+        return (short) ~fold(accumulation);
+    }
+
+    /**
+     * Updates a checksum after a 32-bit value it covers, such as an address,
+     * has changed.
+     * @param checksum the current checksum
+     * @param oldValue the old value
+     * @param newValue the new value
+     * @return the updated checksum
+     */
+    public static short update(short checksum, int oldValue, int newValue) {
+        long accumulation = (~checksum & 0xffff)
+                + (~oldValue >>> 16) + (~oldValue & 0xffff)
+                + (newValue >>> 16) + (newValue & 0xffff);
+        return (short) ~fold(accumulation);
+    }
+
+    /**
+     * Folds the carries of a 64-bit accumulator back into 16 bits.
+     */
+    private static int fold(long accumulation) {
+        accumulation = (accumulation >>> 32) + (accumulation & 0xffffffffL);
+        accumulation = (accumulation >>> 16) + (accumulation & 0xffff);
+        accumulation = (accumulation >>> 16) + (accumulation & 0xffff);
+        accumulation = (accumulation >>> 16) + (accumulation & 0xffff);
+        return (int) accumulation;
+    }
+}
@@ -18,7 +18,6 @@
 package net.floodlightcontroller.packet;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -44,6 +43,9 @@ public class Ethernet extends BasePacket {
         etherTypeClassMap.put(TYPE_ARP, ARP.class);
         etherTypeClassMap.put(TYPE_RARP, ARP.class);
         etherTypeClassMap.put(TYPE_IPv4, IPv4.class);
+        PacketRegistry.registerEtherType(TYPE_ARP, ARP::new);
+        PacketRegistry.registerEtherType(TYPE_RARP, ARP::new);
+        PacketRegistry.registerEtherType(TYPE_IPv4, IPv4::new);
     }
 
     protected MACAddress destinationMACAddress;
@@ -198,31 +200,36 @@ public class Ethernet extends BasePacket {
     }
 
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] data = new byte[getSerializedLength()];
+        serializeTo(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    @Override
+    public int getSerializedLength() {
         int length = 14 + ((vlanID == VLAN_UNTAGGED) ? 0 : 4) +
-                          ((payloadData == null) ? 0 : payloadData.length);
+                          getPayloadSerializedLength();
         if (pad && length < 60) {
             length = 60;
         }
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        bb.put(destinationMACAddress.toBytes());
-        bb.put(sourceMACAddress.toBytes());
+        return length;
+    }
+
+    @Override
+    public void serializeTo(ByteBuffer bb) {
+        int start = bb.position();
+        destinationMACAddress.writeTo(bb);
+        sourceMACAddress.writeTo(bb);
         if (vlanID != VLAN_UNTAGGED) {
             bb.putShort((short) 0x8100);
             bb.putShort((short) ((priorityCode << 13) | (vlanID & 0x0fff)));
         }
         bb.putShort(etherType);
-        if (payloadData != null)
-            bb.put(payloadData);
+        serializePayloadTo(bb);
         if (pad) {
-            Arrays.fill(data, bb.position(), data.length, (byte)0x0);
+            while (bb.position() - start < 60)
+                bb.put((byte)0x0);
         }
-        return data;
     }
 
     @Override
@@ -253,20 +260,24 @@ public class Ethernet extends BasePacket {
         }
         this.etherType = etherType;
         
-        IPacket payload;
-        if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
+        deserializePayload(data, bb.position(), bb.limit()-bb.position());
+        return this;
+    }
+
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        IPacket payload = PacketRegistry.newEtherTypePayload(this.etherType);
+        if (payload == null && Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
             Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
             try {
                 payload = clazz.newInstance();
             } catch (Exception e) {
                 throw new RuntimeException("Error parsing payload for Ethernet packet", e);
             }
-        } else {
+        } else if (payload == null) {
             payload = new Data();
         }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
-        return this;
+        return payload.deserialize(data, offset, length);
     }
 
     /**
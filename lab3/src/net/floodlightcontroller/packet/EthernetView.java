@@ -0,0 +1,115 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight view of an Ethernet frame in a {@link ByteBuffer}. Unlike
+ * {@link Ethernet}, the view decodes nothing up front; each accessor reads
+ * the field from the buffer when it is called.
+ */
+public class EthernetView extends PacketView {
+    private static final short TYPE_VLAN = (short) 0x8100;
+
+    @Override
+    public EthernetView wrap(ByteBuffer buffer, int offset, int length) {
+        super.wrap(buffer, offset, length);
+        return this;
+    }
+
+    /**
+     * @return true if the frame is long enough to hold its header
+     */
+    public boolean isValid() {
+        return length >= 14 && length >= getHeaderLength();
+    }
+
+    /**
+     * @return the destination MAC in the lower 48 bits of a long
+     */
+    public long getDestinationMAC() {
+        return getMAC(offset);
+    }
+
+    /**
+     * @param mac the destination MAC to set, in the lower 48 bits of a long
+     */
+    public EthernetView setDestinationMAC(long mac) {
+        putMAC(offset, mac);
+        return this;
+    }
+
+    /**
+     * @return the source MAC in the lower 48 bits of a long
+     */
+    public long getSourceMAC() {
+        return getMAC(offset + 6);
+    }
+
+    /**
+     * @param mac the source MAC to set, in the lower 48 bits of a long
+     */
+    public EthernetView setSourceMAC(long mac) {
+        putMAC(offset + 6, mac);
+        return this;
+    }
+
+    /**
+     * @return True if the Ethernet frame is broadcast, false otherwise
+     */
+    public boolean isBroadcast() {
+        return getDestinationMAC() == 0xffffffffffffL;
+    }
+
+    /**
+     * @return True is the Ethernet frame is multicast, False otherwise
+     */
+    public boolean isMulticast() {
+        return !isBroadcast() && (buffer.get(offset) & 0x01) != 0;
+    }
+
+    /**
+     * @return true if the frame carries an 802.1Q VLAN tag
+     */
+    public boolean isTagged() {
+        return buffer.getShort(offset + 12) == TYPE_VLAN;
+    }
+
+    /**
+     * @return the vlanID, or {@link Ethernet#VLAN_UNTAGGED}
+     */
+    public short getVlanID() {
+        if (!isTagged())
+            return Ethernet.VLAN_UNTAGGED;
+        return (short) (buffer.getShort(offset + 14) & 0x0fff);
+    }
+
+    /**
+     * @return the etherType of the payload, skipping any VLAN tag
+     */
+    public short getEtherType() {
+        return buffer.getShort(offset + getHeaderLength() - 2);
+    }
+
+    @Override
+    public int getHeaderLength() {
+        return isTagged() ? 18 : 14;
+    }
+
+    /**
+     * Points a view at this frame's IPv4 payload.
+     * @param view the view to re-point
+     * @return the view
+     */
+    public IPv4View getIPv4(IPv4View view) {
+        return view.wrap(buffer, getPayloadOffset(), getPayloadLength());
+    }
+
+    /**
+     * Points a view at this frame's ARP payload.
+     * @param view the view to re-point
+     * @return the view
+     */
+    public ArpView getArp(ArpView view) {
+        return view.wrap(buffer, getPayloadOffset(), getPayloadLength());
+    }
+}
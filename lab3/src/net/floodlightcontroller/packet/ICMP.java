@@ -82,45 +82,34 @@ public class ICMP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        int length = 4;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-            length += payloadData.length;
-        }
+        byte[] data = new byte[getSerializedLength()];
+        serializeTo(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    @Override
+    public int getSerializedLength() {
+        return 4 + getPayloadSerializedLength();
+    }
 
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+    @Override
+    public void serializeTo(ByteBuffer bb) {
+        int start = bb.position();
+        int length = getSerializedLength();
 
         bb.put(this.icmpType);
         bb.put(this.icmpCode);
         bb.putShort(this.checksum);
-        if (payloadData != null)
-            bb.put(payloadData);
+        serializePayloadTo(bb);
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_ICMP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
-            int accumulation = 0;
-
-            for (int i = 0; i < length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
-            }
-            // pad to an even number of shorts
-            if (length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
-            }
-
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(2, this.checksum);
+            this.checksum = Checksum.checksum(bb, start, length, 0);
+            bb.putShort(start + 2, this.checksum);
         }
-        return data;
     }
 
     /* (non-Javadoc)
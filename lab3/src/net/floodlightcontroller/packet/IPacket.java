@@ -17,6 +17,8 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
+
 /**
 *
 * @author David Erickson (daviderickson@cs.stanford.edu)
@@ -60,6 +62,21 @@ public interface IPacket {
      */
     public byte[] serialize();
 
+    /**
+     * Sets all payloads parent packet if applicable, then serializes this
+     * packet and all payloads into a buffer, starting at the buffer's
+     * position. Computes the same fields as {@link #serialize()}.
+     * @param bb the buffer to write to; its position is advanced by
+     *        {@link #getSerializedLength()}
+     */
+    public void serializeTo(ByteBuffer bb);
+
+    /**
+     * @return the number of bytes this packet and all payloads occupy when
+     *         serialized
+     */
+    public int getSerializedLength();
+
     /**
      * Deserializes this packet layer and all possible payloads
      * @param data
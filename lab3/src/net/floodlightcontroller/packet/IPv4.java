@@ -41,6 +41,9 @@ public class IPv4 extends BasePacket {
         protocolClassMap.put(PROTOCOL_ICMP, ICMP.class);
         protocolClassMap.put(PROTOCOL_TCP, TCP.class);
         protocolClassMap.put(PROTOCOL_UDP, UDP.class);
+        PacketRegistry.registerIpProtocol(PROTOCOL_ICMP, ICMP::new);
+        PacketRegistry.registerIpProtocol(PROTOCOL_TCP, TCP::new);
+        PacketRegistry.registerIpProtocol(PROTOCOL_UDP, UDP::new);
     }
 
     protected byte version;
@@ -58,6 +61,7 @@ public class IPv4 extends BasePacket {
     protected byte[] options;
 
     protected boolean isTruncated;
+    protected boolean isChecksumValid;
 
     /**
      * Default constructor that sets the version to 4.
@@ -66,6 +70,7 @@ public class IPv4 extends BasePacket {
         super();
         this.version = 4;
         isTruncated = false;
+        isChecksumValid = true;
     }
 
     /**
@@ -127,6 +132,15 @@ public class IPv4 extends BasePacket {
         this.isTruncated = isTruncated;
     }
 
+    /**
+     * @return true if the header checksum matched the header bytes this
+     *         packet was deserialized from; always true for packets that
+     *         were built rather than deserialized
+     */
+    public boolean isChecksumValid() {
+        return isChecksumValid;
+    }
+
     /**
      * @param identification the identification to set
      */
@@ -215,6 +229,22 @@ public class IPv4 extends BasePacket {
         super.resetChecksum();
     }
 
+    /**
+     * Decrements the TTL and adjusts the header checksum to match, using
+     * the incremental update from RFC 1624 instead of recomputing the
+     * checksum over the whole header.
+     * @return the new ttl
+     */
+    public byte decrementTtl() {
+        int oldWord = ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        this.ttl = (byte) (this.ttl - 1);
+        int newWord = ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        if (this.checksum != 0)
+            this.checksum = Checksum.update(this.checksum, (short) oldWord,
+                    (short) newWord);
+        return this.ttl;
+    }
+
     /**
      * @return the sourceAddress
      */
@@ -287,22 +317,29 @@ public class IPv4 extends BasePacket {
      *      -totalLength : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] data = new byte[getSerializedLength()];
+        serializeTo(ByteBuffer.wrap(data));
+        return data;
+    }
 
+    @Override
+    public int getSerializedLength() {
         int optionsLength = 0;
         if (this.options != null)
             optionsLength = this.options.length / 4;
-        this.headerLength = (byte) (5 + optionsLength);
+        return (5 + optionsLength) * 4 + getPayloadSerializedLength();
+    }
 
-        this.totalLength = (short) (this.headerLength * 4 + ((payloadData == null) ? 0
-                : payloadData.length));
+    @Override
+    public void serializeTo(ByteBuffer bb) {
+        int start = bb.position();
+        int optionsLength = 0;
+        if (this.options != null)
+            optionsLength = this.options.length / 4;
+        this.headerLength = (byte) (5 + optionsLength);
 
-        byte[] data = new byte[this.totalLength];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+        this.totalLength = (short) (this.headerLength * 4
+                + getPayloadSerializedLength());
 
         bb.put((byte) (((this.version & 0xf) << 4) | (this.headerLength & 0xf)));
         bb.put(this.diffServ);
@@ -311,7 +348,6 @@ public class IPv4 extends BasePacket {
         bb.putShort((short) (((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff)));
 
         bb.put(this.ttl);
-        // bb.put((byte)1);
         bb.put(this.protocol);
         bb.putShort(this.checksum);
 
@@ -319,22 +355,16 @@ public class IPv4 extends BasePacket {
         bb.putInt(this.destinationAddress);
         if (this.options != null)
             bb.put(this.options);
-        if (payloadData != null)
-            bb.put(payloadData);
+        serializePayloadTo(bb);
+
+        // the payload may have set the protocol while serializing
+        bb.put(start + 9, this.protocol);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
-            int accumulation = 0;
-            for (int i = 0; i < this.headerLength * 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
-            }
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(10, this.checksum);
+            this.checksum = Checksum.checksum(bb, start, this.headerLength * 4, 0);
+            bb.putShort(start + 10, this.checksum);
         }
-        return data;
     }
 
     @Override
@@ -363,26 +393,37 @@ public class IPv4 extends BasePacket {
             bb.get(this.options);
         }
 
-        IPacket payload;
-        if (IPv4.protocolClassMap.containsKey(this.protocol)) {
+        // verify the checksum over the received header bytes
+        if (this.headerLength >= 5 && this.headerLength * 4 <= length)
+            this.isChecksumValid =
+                (Checksum.checksum(data, offset, this.headerLength * 4, 0) == 0);
+        else
+            this.isChecksumValid = false;
+
+        deserializePayload(data, bb.position(), bb.limit()-bb.position());
+
+        if (this.totalLength != length)
+            this.isTruncated = true;
+        else
+            this.isTruncated = false;
+
+        return this;
+    }
+
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        IPacket payload = PacketRegistry.newIpProtocolPayload(this.protocol);
+        if (payload == null && IPv4.protocolClassMap.containsKey(this.protocol)) {
             Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
             try {
                 payload = clazz.newInstance();
             } catch (Exception e) {
                 throw new RuntimeException("Error parsing payload for IPv4 packet", e);
             }
-        } else {
+        } else if (payload == null) {
             payload = new Data();
         }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
-
-        if (this.totalLength != length)
-            this.isTruncated = true;
-        else
-            this.isTruncated = false;
-
-        return this;
+        return payload.deserialize(data, offset, length);
     }
 
     /**
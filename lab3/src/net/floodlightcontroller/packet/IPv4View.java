@@ -0,0 +1,188 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight view of an IPv4 packet in a {@link ByteBuffer}.
+ */
+public class IPv4View extends PacketView {
+
+    @Override
+    public IPv4View wrap(ByteBuffer buffer, int offset, int length) {
+        super.wrap(buffer, offset, length);
+        return this;
+    }
+
+    /**
+     * @return true if the packet is long enough to hold its header and
+     *         claims to be version 4
+     */
+    public boolean isValid() {
+        return length >= 20 && getVersion() == 4
+                && getHeaderLength() >= 20 && getHeaderLength() <= length;
+    }
+
+    /**
+     * @return the version
+     */
+    public byte getVersion() {
+        return (byte) ((buffer.get(offset) >> 4) & 0xf);
+    }
+
+    @Override
+    public int getHeaderLength() {
+        return (buffer.get(offset) & 0xf) * 4;
+    }
+
+    /**
+     * @return the diffServ
+     */
+    public byte getDiffServ() {
+        return buffer.get(offset + 1);
+    }
+
+    /**
+     * @return the totalLength
+     */
+    public int getTotalLength() {
+        return buffer.getShort(offset + 2) & 0xffff;
+    }
+
+    /**
+     * @return the identification
+     */
+    public short getIdentification() {
+        return buffer.getShort(offset + 4);
+    }
+
+    /**
+     * @return the flags
+     */
+    public byte getFlags() {
+        return (byte) ((buffer.get(offset + 6) >> 5) & 0x7);
+    }
+
+    /**
+     * @return the fragmentOffset
+     */
+    public short getFragmentOffset() {
+        return (short) (buffer.getShort(offset + 6) & 0x1fff);
+    }
+
+    /**
+     * @return true if the packet is a fragment other than the first one
+     */
+    public boolean isLaterFragment() {
+        return getFragmentOffset() != 0;
+    }
+
+    /**
+     * @return the ttl, as an unsigned value
+     */
+    public int getTtl() {
+        return buffer.get(offset + 8) & 0xff;
+    }
+
+    /**
+     * @return the protocol
+     */
+    public byte getProtocol() {
+        return buffer.get(offset + 9);
+    }
+
+    /**
+     * @return the checksum
+     */
+    public short getChecksum() {
+        return buffer.getShort(offset + 10);
+    }
+
+    /**
+     * @return the sourceAddress
+     */
+    public int getSourceAddress() {
+        return buffer.getInt(offset + 12);
+    }
+
+    /**
+     * @param sourceAddress the sourceAddress to set; the checksum is not
+     *        updated
+     */
+    public IPv4View setSourceAddress(int sourceAddress) {
+        buffer.putInt(offset + 12, sourceAddress);
+        return this;
+    }
+
+    /**
+     * @return the destinationAddress
+     */
+    public int getDestinationAddress() {
+        return buffer.getInt(offset + 16);
+    }
+
+    /**
+     * @param destinationAddress the destinationAddress to set; the checksum
+     *        is not updated
+     */
+    public IPv4View setDestinationAddress(int destinationAddress) {
+        buffer.putInt(offset + 16, destinationAddress);
+        return this;
+    }
+
+    /**
+     * @return true if the header checksum is correct
+     */
+    public boolean isChecksumValid() {
+        return Checksum.checksum(buffer, offset, getHeaderLength(), 0) == 0;
+    }
+
+    /**
+     * Recomputes the header checksum in place.
+     */
+    public IPv4View updateChecksum() {
+        buffer.putShort(offset + 10, (short) 0);
+        buffer.putShort(offset + 10,
+                Checksum.checksum(buffer, offset, getHeaderLength(), 0));
+        return this;
+    }
+
+    /**
+     * Decrements the TTL in place and adjusts the header checksum using the
+     * incremental update from RFC 1624.
+     * @return the new ttl
+     */
+    public int decrementTtl() {
+        short oldWord = buffer.getShort(offset + 8);
+        short newWord = (short) (oldWord - 0x100);
+        buffer.putShort(offset + 8, newWord);
+        buffer.putShort(offset + 10,
+                Checksum.update(getChecksum(), oldWord, newWord));
+        return (newWord >>> 8) & 0xff;
+    }
+
+    /**
+     * Points a view at this packet's UDP payload.
+     * @param view the view to re-point
+     * @return the view
+     */
+    public UdpView getUdp(UdpView view) {
+        return view.wrap(buffer, getPayloadOffset(), getL4Length());
+    }
+
+    /**
+     * Points a view at this packet's TCP payload.
+     * @param view the view to re-point
+     * @return the view
+     */
+    public TcpView getTcp(TcpView view) {
+        return view.wrap(buffer, getPayloadOffset(), getL4Length());
+    }
+
+    /**
+     * @return length of the payload according to the total length field,
+     *         bounded by the bytes actually present
+     */
+    private int getL4Length() {
+        return Math.min(getTotalLength(), length) - getHeaderLength();
+    }
+}
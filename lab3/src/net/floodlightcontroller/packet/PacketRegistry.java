@@ -0,0 +1,95 @@
+package net.floodlightcontroller.packet;
+
+import java.util.function.Supplier;
+
+/**
+ * Registry of the packet classes used to decode payloads, indexed directly
+ * by EtherType, IP protocol number and UDP port. Decoding a payload is a
+ * single array load and a constructor call, with no boxing, map lookup or
+ * reflection.
+ *
+ * Packet classes register the payloads they know about in their static
+ * initializers; other protocols can be added at startup, before packets
+ * are decoded, e.g.
+ * <pre>
+ *     PacketRegistry.registerUdpPort(UDP.RIP_PORT, RIPv2::new);
+ * </pre>
+ */
+public final class PacketRegistry {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Supplier<? extends IPacket>[] etherTypes =
+            new Supplier[1 << 16];
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Supplier<? extends IPacket>[] ipProtocols =
+            new Supplier[1 << 8];
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Supplier<? extends IPacket>[] udpPorts =
+            new Supplier[1 << 16];
+
+    private PacketRegistry() {
+    }
+
+    /**
+     * @param etherType the EtherType carried by an Ethernet frame
+     * @param factory creates an empty payload packet; null to unregister
+     */
+    public static void registerEtherType(short etherType,
+            Supplier<? extends IPacket> factory) {
+        etherTypes[etherType & 0xffff] = factory;
+    }
+
+    /**
+     * @param protocol the protocol number carried by an IPv4 packet
+     * @param factory creates an empty payload packet; null to unregister
+     */
+    public static void registerIpProtocol(byte protocol,
+            Supplier<? extends IPacket> factory) {
+        ipProtocols[protocol & 0xff] = factory;
+    }
+
+    /**
+     * @param port the UDP port, matched against the destination port and
+     *        then the source port of a datagram
+     * @param factory creates an empty payload packet; null to unregister
+     */
+    public static void registerUdpPort(short port,
+            Supplier<? extends IPacket> factory) {
+        udpPorts[port & 0xffff] = factory;
+    }
+
+    /**
+     * @param etherType
+     * @return a new, empty packet for the EtherType, or null if none is
+     *         registered
+     */
+    public static IPacket newEtherTypePayload(short etherType) {
+        Supplier<? extends IPacket> factory = etherTypes[etherType & 0xffff];
+        return (factory == null) ? null : factory.get();
+    }
+
+    /**
+     * @param protocol
+     * @return a new, empty packet for the IP protocol, or null if none is
+     *         registered
+     */
+    public static IPacket newIpProtocolPayload(byte protocol) {
+        Supplier<? extends IPacket> factory = ipProtocols[protocol & 0xff];
+        return (factory == null) ? null : factory.get();
+    }
+
+    /**
+     * @param destinationPort
+     * @param sourcePort
+     * @return a new, empty packet for the destination port, or else for the
+     *         source port; null if neither is registered
+     */
+    public static IPacket newUdpPayload(short destinationPort,
+            short sourcePort) {
+        Supplier<? extends IPacket> factory = udpPorts[destinationPort & 0xffff];
+        if (factory == null)
+            factory = udpPorts[sourcePort & 0xffff];
+        return (factory == null) ? null : factory.get();
+    }
+}
@@ -0,0 +1,88 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base class for flyweight packet views. A view reads and writes header
+ * fields directly at their offsets in a shared {@link ByteBuffer} instead of
+ * decoding the packet into objects, so a view can be re-pointed at a new
+ * packet without allocating anything. Views never change the buffer's
+ * position or limit.
+ */
+public abstract class PacketView {
+    protected ByteBuffer buffer;
+    protected int offset;
+    protected int length;
+
+    /**
+     * Points this view at a packet in a buffer.
+     * @param buffer buffer holding the packet
+     * @param offset offset of the first byte of the packet's header
+     * @param length number of bytes from the offset that belong to the
+     *        packet, including its payload
+     * @return this view
+     */
+    public PacketView wrap(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * @return the buffer holding the packet
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return offset of the packet's header in the buffer
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return number of bytes in the packet, including its payload
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the length of this packet's header, which is where its
+     *         payload starts relative to the offset
+     */
+    public abstract int getHeaderLength();
+
+    /**
+     * @return offset of the packet's payload in the buffer
+     */
+    public int getPayloadOffset() {
+        return offset + getHeaderLength();
+    }
+
+    /**
+     * @return number of bytes in the packet's payload
+     */
+    public int getPayloadLength() {
+        return length - getHeaderLength();
+    }
+
+    /**
+     * Reads a 48-bit MAC address at an offset in the buffer.
+     */
+    protected long getMAC(int at) {
+        return ((long) (buffer.getShort(at) & 0xffff) << 32)
+                | (buffer.getInt(at + 2) & 0xffffffffL);
+    }
+
+    /**
+     * Writes a 48-bit MAC address at an offset in the buffer.
+     */
+    protected void putMAC(int at, long mac) {
+        buffer.putShort(at, (short) (mac >>> 32));
+        buffer.putInt(at + 2, (int) mac);
+    }
+}
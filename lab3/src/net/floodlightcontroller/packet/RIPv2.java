@@ -42,17 +42,23 @@ public class RIPv2 extends BasePacket
 	@Override
 	public byte[] serialize() 
     {
-		int length = 1 + 1 + 2 + this.entries.size() * (5*4);
-		byte[] data = new byte[length];
-		ByteBuffer bb = ByteBuffer.wrap(data);
+		byte[] data = new byte[this.getSerializedLength()];
+		this.serializeTo(ByteBuffer.wrap(data));
+		return data;
+	}
+
+	@Override
+	public int getSerializedLength()
+	{ return 1 + 1 + 2 + this.entries.size() * (5*4); }
 
+	@Override
+	public void serializeTo(ByteBuffer bb)
+	{
 		bb.put(this.command);
 		bb.put(this.version);
 		bb.putShort((short)0); // Put padding
 		for (RIPv2Entry entry : this.entries)
-		{ bb.put(entry.serialize()); }
-
-		return data;
+		{ entry.serializeTo(bb); }
 	}
 
 	@Override
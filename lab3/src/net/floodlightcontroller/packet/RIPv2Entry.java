@@ -76,15 +76,22 @@ public class RIPv2Entry
     {
 		int length = 2*2 + 4*4;
 		byte[] data = new byte[length];
-		ByteBuffer bb = ByteBuffer.wrap(data);
+		this.serializeTo(ByteBuffer.wrap(data));
+		return data;
+	}
 
+	/**
+	 * Write the entry into a buffer at its position.
+	 * @param bb the buffer to write to
+	 */
+	public void serializeTo(ByteBuffer bb)
+	{
 		bb.putShort(this.addressFamily);
 		bb.putShort(this.routeTag);
         bb.putInt(this.address);
         bb.putInt(this.subnetMask);
         bb.putInt(this.nextHopAddress);
         bb.putInt(this.metric);
-		return data;
 	}
 
 	public RIPv2Entry deserialize(byte[] data, int offset, int length) 
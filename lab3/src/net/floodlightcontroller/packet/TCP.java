@@ -151,19 +151,22 @@ public class TCP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        int length;
+        byte[] data = new byte[getSerializedLength()];
+        serializeTo(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    @Override
+    public int getSerializedLength() {
         if (dataOffset == 0)
             dataOffset = 5;  // default header length
-        length = dataOffset << 2;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-            length += payloadData.length;
-        }
+        return (dataOffset << 2) + getPayloadSerializedLength();
+    }
 
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+    @Override
+    public void serializeTo(ByteBuffer bb) {
+        int start = bb.position();
+        int length = getSerializedLength();
 
         bb.putShort(this.sourcePort);
         bb.putShort(this.destinationPort);
@@ -180,42 +183,26 @@ public class TCP extends BasePacket {
             for (int i = 0; i < padding; i++)
                 bb.put((byte) 0);
         }
-        if (payloadData != null)
-            bb.put(payloadData);
+        serializePayloadTo(bb);
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_TCP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
 
             // compute pseudo header mac
             if (this.parent != null && this.parent instanceof IPv4) {
                 IPv4 ipv4 = (IPv4) this.parent;
-                accumulation += ((ipv4.getSourceAddress() >> 16) & 0xffff)
-                        + (ipv4.getSourceAddress() & 0xffff);
-                accumulation += ((ipv4.getDestinationAddress() >> 16) & 0xffff)
-                        + (ipv4.getDestinationAddress() & 0xffff);
-                accumulation += ipv4.getProtocol() & 0xff;
-                accumulation += length & 0xffff;
+                accumulation = Checksum.pseudoHeaderSum(ipv4.getSourceAddress(),
+                        ipv4.getDestinationAddress(), ipv4.getProtocol(),
+                        length);
             }
 
-            for (int i = 0; i < length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
-            }
-            // pad to an even number of shorts
-            if (length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
-            }
-
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(16, this.checksum);
+            this.checksum = Checksum.checksum(bb, start, length, accumulation);
+            bb.putShort(start + 16, this.checksum);
         }
-        return data;
     }
 
     /* (non-Javadoc)
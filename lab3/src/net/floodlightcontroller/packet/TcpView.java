@@ -0,0 +1,82 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight view of a TCP segment in a {@link ByteBuffer}.
+ */
+public class TcpView extends PacketView {
+
+    @Override
+    public TcpView wrap(ByteBuffer buffer, int offset, int length) {
+        super.wrap(buffer, offset, length);
+        return this;
+    }
+
+    /**
+     * @return true if the segment is long enough to hold its header
+     */
+    public boolean isValid() {
+        return length >= 20 && getHeaderLength() >= 20
+                && getHeaderLength() <= length;
+    }
+
+    @Override
+    public int getHeaderLength() {
+        return ((buffer.get(offset + 12) >> 4) & 0xf) * 4;
+    }
+
+    /**
+     * @return the sourcePort
+     */
+    public short getSourcePort() {
+        return buffer.getShort(offset);
+    }
+
+    /**
+     * @param sourcePort the sourcePort to set; the checksum is not updated
+     */
+    public TcpView setSourcePort(short sourcePort) {
+        buffer.putShort(offset, sourcePort);
+        return this;
+    }
+
+    /**
+     * @return the destinationPort
+     */
+    public short getDestinationPort() {
+        return buffer.getShort(offset + 2);
+    }
+
+    /**
+     * @param destinationPort the destinationPort to set; the checksum is
+     *        not updated
+     */
+    public TcpView setDestinationPort(short destinationPort) {
+        buffer.putShort(offset + 2, destinationPort);
+        return this;
+    }
+
+    public int getSequence() {
+        return buffer.getInt(offset + 4);
+    }
+
+    public int getAcknowledge() {
+        return buffer.getInt(offset + 8);
+    }
+
+    public short getFlags() {
+        return (short) (buffer.getShort(offset + 12) & 0x1ff);
+    }
+
+    public short getWindowSize() {
+        return buffer.getShort(offset + 14);
+    }
+
+    /**
+     * @return the checksum
+     */
+    public short getChecksum() {
+        return buffer.getShort(offset + 16);
+    }
+}
@@ -34,6 +34,7 @@ public class UDP extends BasePacket {
     static {
         decodeMap = new HashMap<Short, Class<? extends IPacket>>();
         UDP.decodeMap.put(RIP_PORT, RIPv2.class);
+        PacketRegistry.registerUdpPort(RIP_PORT, RIPv2::new);
     }
 
     protected short sourcePort;
@@ -106,58 +107,46 @@ public class UDP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] data = new byte[getSerializedLength()];
+        serializeTo(ByteBuffer.wrap(data));
+        return data;
+    }
 
-        this.length = (short) (8 + ((payloadData == null) ? 0
-                : payloadData.length));
+    @Override
+    public int getSerializedLength() {
+        return 8 + getPayloadSerializedLength();
+    }
 
-        byte[] data = new byte[this.length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+    @Override
+    public void serializeTo(ByteBuffer bb) {
+        int start = bb.position();
+        this.length = (short) (8 + getPayloadSerializedLength());
 
         bb.putShort(this.sourcePort);
         bb.putShort(this.destinationPort);
         bb.putShort(this.length);
         bb.putShort(this.checksum);
-        if (payloadData != null)
-            bb.put(payloadData);
+        serializePayloadTo(bb);
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_UDP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
 
             // compute pseudo header mac
             if (this.parent != null && this.parent instanceof IPv4) {
                 IPv4 ipv4 = (IPv4) this.parent;
-                accumulation += ((ipv4.getSourceAddress() >> 16) & 0xffff)
-                        + (ipv4.getSourceAddress() & 0xffff);
-                accumulation += ((ipv4.getDestinationAddress() >> 16) & 0xffff)
-                        + (ipv4.getDestinationAddress() & 0xffff);
-                accumulation += ipv4.getProtocol() & 0xff;
-                accumulation += this.length & 0xffff;
+                accumulation = Checksum.pseudoHeaderSum(ipv4.getSourceAddress(),
+                        ipv4.getDestinationAddress(), ipv4.getProtocol(),
+                        this.length);
             }
 
-            for (int i = 0; i < this.length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
-            }
-            // pad to an even number of shorts
-            if (this.length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
-            }
-
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(6, this.checksum);
+            this.checksum = Checksum.checksum(bb, start, this.length & 0xffff,
+                    accumulation);
+            bb.putShort(start + 6, this.checksum);
         }
-        return data;
     }
 
     /* (non-Javadoc)
@@ -205,23 +194,29 @@ public class UDP extends BasePacket {
         this.length = bb.getShort();
         this.checksum = bb.getShort();
 
-        if (UDP.decodeMap.containsKey(this.destinationPort)) {
+        deserializePayload(data, bb.position(), bb.limit()-bb.position());
+        return this;
+    }
+
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        IPacket payload = PacketRegistry.newUdpPayload(this.destinationPort,
+                this.sourcePort);
+        if (payload == null && UDP.decodeMap.containsKey(this.destinationPort)) {
             try {
-                this.payload = UDP.decodeMap.get(this.destinationPort).getConstructor().newInstance();
+                payload = UDP.decodeMap.get(this.destinationPort).getConstructor().newInstance();
             } catch (Exception e) {
                 throw new RuntimeException("Failure instantiating class", e);
             }
-        } else if (UDP.decodeMap.containsKey(this.sourcePort)) {
+        } else if (payload == null && UDP.decodeMap.containsKey(this.sourcePort)) {
             try {
-                this.payload = UDP.decodeMap.get(this.sourcePort).getConstructor().newInstance();
+                payload = UDP.decodeMap.get(this.sourcePort).getConstructor().newInstance();
             } catch (Exception e) {
                 throw new RuntimeException("Failure instantiating class", e);
             }
-        } else {
-            this.payload = new Data();
+        } else if (payload == null) {
+            payload = new Data();
         }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
-        return this;
+        return payload.deserialize(data, offset, length);
     }
 }
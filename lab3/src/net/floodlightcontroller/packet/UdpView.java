@@ -0,0 +1,72 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight view of a UDP datagram in a {@link ByteBuffer}.
+ */
+public class UdpView extends PacketView {
+
+    @Override
+    public UdpView wrap(ByteBuffer buffer, int offset, int length) {
+        super.wrap(buffer, offset, length);
+        return this;
+    }
+
+    /**
+     * @return true if the datagram is long enough to hold its header
+     */
+    public boolean isValid() {
+        return length >= 8;
+    }
+
+    @Override
+    public int getHeaderLength() {
+        return 8;
+    }
+
+    /**
+     * @return the sourcePort
+     */
+    public short getSourcePort() {
+        return buffer.getShort(offset);
+    }
+
+    /**
+     * @param sourcePort the sourcePort to set; the checksum is not updated
+     */
+    public UdpView setSourcePort(short sourcePort) {
+        buffer.putShort(offset, sourcePort);
+        return this;
+    }
+
+    /**
+     * @return the destinationPort
+     */
+    public short getDestinationPort() {
+        return buffer.getShort(offset + 2);
+    }
+
+    /**
+     * @param destinationPort the destinationPort to set; the checksum is
+     *        not updated
+     */
+    public UdpView setDestinationPort(short destinationPort) {
+        buffer.putShort(offset + 2, destinationPort);
+        return this;
+    }
+
+    /**
+     * @return the length field
+     */
+    public int getUdpLength() {
+        return buffer.getShort(offset + 4) & 0xffff;
+    }
+
+    /**
+     * @return the checksum
+     */
+    public short getChecksum() {
+        return buffer.getShort(offset + 6);
+    }
+}